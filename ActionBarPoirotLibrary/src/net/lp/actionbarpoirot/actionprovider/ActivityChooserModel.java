@@ -36,28 +36,36 @@ package net.lp.actionbarpoirot.actionprovider;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlSerializer;
 
 import android.annotation.TargetApi;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.database.DataSetObservable;
-import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Xml;
@@ -67,9 +75,13 @@ import android.util.Xml;
  * given {@link Intent}. The model is responsible for querying the system for
  * activities that can handle the given intent and order found activities
  * based on historical data of previous choices. The historical data is stored
- * in an application private file. If a client does not want to have persistent
- * choice history the file can be omitted, thus the activities will be ordered
- * based on historical usage for the current session.
+ * in an application private, append-only binary log (see {@link HistoricalRecordLog}).
+ * History files written as XML by earlier versions are migrated on first read. If a
+ * client does not want to have persistent choice history the file can be omitted,
+ * thus the activities will be ordered based on historical usage for the current session.
+ * The history is read and changes are written on a dedicated thread, so every
+ * write follows the read. Changes are collected over a short window; hosts
+ * can force pending changes to disk with {@link #flush()} or {@link #flushAll()}.
  * <p>
  * </p>
  * For each backing history file there is a singleton instance of this class. Thus,
@@ -104,7 +116,8 @@ import android.util.Xml;
  * <code>
  * </p>
  * <p>
- * <strong>Note:</strong> This class is thread safe.
+ * <strong>Note:</strong> This class is thread safe. The accessors read an immutable
+ * snapshot without locking, and observers are always notified on the main thread.
  * </p>
  * 
  * 
@@ -152,6 +165,59 @@ import android.util.Xml;
                 List<HistoricalRecord> historicalRecords);
     }
 
+    /**
+     * Defines a sorter that can update the order of the activities for a
+     * single added or pruned historical record, without going over the whole
+     * history. The updates are only made after a call to
+     * {@link #sort(Intent, List, List)} with the same activities, and they
+     * must result in the same order as that method would.
+     */
+    public interface IncrementalActivitySorter extends ActivitySorter {
+
+        /**
+         * Updates the order of the <code>activities</code> for a record
+         * added as the newest to the history.
+         *
+         * @param intent The {@link Intent}.
+         * @param activities Activities to be sorted.
+         * @param historicalRecord The added record.
+         * @return Whether the activities are sorted, otherwise a full sort is needed.
+         */
+        public boolean onHistoricalRecordAdded(Intent intent, List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord);
+
+        /**
+         * Updates the order of the <code>activities</code> for the oldest
+         * record pruned from the history.
+         *
+         * @param intent The {@link Intent}.
+         * @param activities Activities to be sorted.
+         * @param historicalRecord The pruned record.
+         * @return Whether the activities are sorted, otherwise a full sort is needed.
+         */
+        public boolean onHistoricalRecordPruned(Intent intent, List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord);
+    }
+
+    /**
+     * Defines a provider of a secondary intent, whose activities are offered
+     * next to the activities for the intent itself. A chosen secondary
+     * activity is launched with the secondary intent.
+     */
+    public interface SecondaryIntentProvider {
+
+        /**
+         * Gets the secondary intent for an intent. This is called when
+         * resolving activities and when launching a secondary activity, so it
+         * should be cheap, e.g. by probing device capabilities only once.
+         *
+         * @param context Context for accessing the package manager.
+         * @param intent The {@link Intent}.
+         * @return A new secondary intent, or <code>null</code> if none.
+         */
+        public Intent getSecondaryIntent(Context context, Intent intent);
+    }
+
     /**
      * Listener for choosing an activity.
      */
@@ -187,12 +253,12 @@ import android.util.Xml;
     private static final String LOG_TAG = ActivityChooserModel.class.getSimpleName();
 
     /**
-     * The root tag in the history file.
+     * The root tag in the legacy XML history file.
      */
     private static final String TAG_HISTORICAL_RECORDS = "historical-records";
 
     /**
-     * The tag for a record in the history file.
+     * The tag for a record in the legacy XML history file.
      */
     private static final String TAG_HISTORICAL_RECORD = "historical-record";
 
@@ -222,6 +288,11 @@ import android.util.Xml;
      */
     public static final int DEFAULT_HISTORY_MAX_LENGTH = 50;
 
+    /**
+     * The default maximal number of models kept in the registry.
+     */
+    public static final int DEFAULT_REGISTRY_MAX_SIZE = 16;
+
     /**
      * The amount with which to inflate a chosen activity when set as default.
      */
@@ -233,7 +304,8 @@ import android.util.Xml;
     private static final float DEFAULT_HISTORICAL_RECORD_WEIGHT = 1.0f;
 
     /**
-     * The extension of the history file.
+     * The extension of the history file name, also used by the legacy XML
+     * history file.
      */
     private static final String HISTORY_FILE_EXTENSION = ".xml";
 
@@ -242,22 +314,75 @@ import android.util.Xml;
      */
     private static final int INVALID_INDEX = -1;
 
+    /**
+     * The maximal number of intent signatures with cached resolved activities.
+     */
+    private static final int RESOLUTION_CACHE_MAX_SIZE = 8;
+
+    /**
+     * The time to collect more history changes before writing them.
+     */
+    private static final long PERSIST_DELAY_MILLIS = 1000;
+
     /**
      * Lock to guard the model registry.
      */
     private static final Object sRegistryLock = new Object();
 
     /**
-     * This the registry for data models.
+     * Lock to guard the creation of the persistence thread.
+     */
+    private static final Object sPersistThreadLock = new Object();
+
+    /**
+     * Handler of the thread all models write their files on, created on first use.
+     */
+    private static Handler sPersistHandler;
+
+    /**
+     * This the registry for data models, in access order.
      */
     private static final Map<String, ActivityChooserModel> sDataModelRegistry =
-        new HashMap<String, ActivityChooserModel>();
+        new LinkedHashMap<String, ActivityChooserModel>(DEFAULT_REGISTRY_MAX_SIZE, 0.75f, true);
+
+    /**
+     * The models evicted from the registry, which are still returned while
+     * clients hold them, so there is never more than one model per file.
+     */
+    private static final Map<String, WeakReference<ActivityChooserModel>> sEvictedDataModels =
+        new HashMap<String, WeakReference<ActivityChooserModel>>();
+
+    /**
+     * The maximal number of models kept in the registry.
+     */
+    private static int sRegistryMaxSize = DEFAULT_REGISTRY_MAX_SIZE;
+
+    /**
+     * Handler for notifying observers on the main thread.
+     */
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Lock for synchronizing on this instance.
      */
     private final Object mInstanceLock = new Object();
 
+    /**
+     * The state published to readers, which do not lock. Replaced, never
+     * modified, under {@link #mInstanceLock} on every change.
+     */
+    private volatile Snapshot mSnapshot = new Snapshot(0, new ResolveInfo[0], new long[0], 0);
+
+    /**
+     * Notifies the observers, when posted to the main thread.
+     */
+    private final Runnable mNotifyChangedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            notifyChanged();
+        }
+    };
+
     /**
      * List of activities that can handle the current intent.
      */
@@ -266,12 +391,17 @@ import android.util.Xml;
     /**
      * List with historical choice records.
      */
-    private final List<HistoricalRecord> mHistoricalRecords = new ArrayList<HistoricalRecord>();
+    private final HistoricalRecordBuffer mHistoricalRecords;
+
+    /**
+     * Client of the shared dispatcher of package changes.
+     */
+    private final PackageChangeDispatcher.Client mPackageClient = new DataModelPackageClient(this);
 
     /**
-     * Monitor for added and removed packages.
+     * Dispatcher of changes to the packages of the resolved activities.
      */
-    private final PackageMonitor mPackageMonitor = new DataModelPackageMonitor();
+    private final PackageChangeDispatcher mPackageChangeDispatcher;
 
     /**
      * Context for accessing resources.
@@ -283,50 +413,190 @@ import android.util.Xml;
      */
     private final String mHistoryFileName;
 
+    /**
+     * The binary log that persists the history, <code>null</code> if the model
+     * is not backed by a file.
+     */
+    private final HistoricalRecordLog mHistoryLog;
+
+    /**
+     * The number of records the history log will contain once all scheduled
+     * writes are done. Used to decide when to compact the log.
+     */
+    private int mLoggedRecordCount;
+
+    /**
+     * Flag whether the history log has to be rewritten rather than appended
+     * to, e.g. after migrating a legacy XML history file.
+     */
+    private boolean mHistoryLogNeedsRewrite = false;
+
+    /**
+     * The file with the last known ranking of the activities, <code>null</code>
+     * if the model is not backed by a file.
+     */
+    private final RankingSnapshotFile mRankingFile;
+
+    /**
+     * The last known ranking, used until the history has been read, or
+     * <code>null</code> if none.
+     */
+    private RankingSnapshotFile.Ranking mColdStartRanking;
+
+    /**
+     * The position of every component in {@link #mColdStartRanking}.
+     */
+    private Map<ComponentName, Integer> mColdStartPositions;
+
     /**
      * The intent for which a activity is being chosen.
      */
     private Intent mIntent;
 
+    /**
+     * The signature of the current intent, see {@link #getIntentSignature(Intent)}.
+     */
+    private String mIntentSignature;
+
+    /**
+     * Cache of resolved activities keyed by intent signature, in access order.
+     */
+    private final Map<String, ResolvedActivities> mResolutionCache =
+        new LinkedHashMap<String, ResolvedActivities>(RESOLUTION_CACHE_MAX_SIZE, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResolvedActivities> eldest) {
+                return size() > RESOLUTION_CACHE_MAX_SIZE;
+            }
+        };
+
+    /**
+     * The number of activity loads served from {@link #mResolutionCache}.
+     */
+    private int mResolutionCacheHitCount;
+
+    /**
+     * The number of activity loads that had to query the package manager.
+     */
+    private int mResolutionCacheMissCount;
+
+    /**
+     * Intern table of the components of activities and historical records.
+     */
+    private final Map<ComponentName, Integer> mComponentIds = new HashMap<ComponentName, Integer>();
+
+    /**
+     * The interned components by id, the reverse of {@link #mComponentIds}.
+     */
+    private final List<ComponentName> mComponents = new ArrayList<ComponentName>();
+
+    /**
+     * Intern table of the packages of activities and historical records.
+     */
+    private final Map<String, Integer> mPackageIds = new HashMap<String, Integer>();
+
+    /**
+     * The interned package id per interned component id.
+     */
+    private int[] mComponentPackageIds = new int[16];
+
     /**
      * The sorter for ordering activities based on intent and past choices.
      */
     private ActivitySorter mActivitySorter = new WithinAppSorter();
 
+    /**
+     * The provider of the secondary intent, <code>null</code> if none.
+     */
+    private SecondaryIntentProvider mSecondaryIntentProvider =
+        new ScanAddSecondaryIntentProvider();
+
     /**
      * The maximal length of the choice history.
      */
     private int mHistoryMaxSize = DEFAULT_HISTORY_MAX_LENGTH;
 
     /**
-     * Flag whether choice history can be read. In general many clients can
-     * share the same data model and {@link #readHistoricalDataIfNeeded()} may be called
-     * by arbitrary of them any number of times. Therefore, this class guarantees
-     * that the very first read succeeds and subsequent reads can be performed
-     * only after a call to {@link #persistHistoricalDataIfNeeded()} followed by change
-     * of the share records.
+     * Lock that keeps writes of this model in order, also when a
+     * {@link #flush()} runs next to a scheduled write.
+     */
+    private final Object mPersistLock = new Object();
+
+    /**
+     * Records added since the last write, to be appended to the history log.
+     */
+    private final List<HistoricalRecord> mPendingAppendedRecords =
+        new ArrayList<HistoricalRecord>();
+
+    /**
+     * Flag whether the history log is to be rewritten with the records at
+     * the time of the next write, which supersedes pending appends.
+     */
+    private boolean mPendingRewrite;
+
+    /**
+     * The ranking to write with the next write, if any.
+     */
+    private RankingSnapshotFile.Ranking mPendingRanking;
+
+    /**
+     * The components of the last ranking handed for writing, in order, or
+     * <code>null</code> if none.
+     */
+    private List<ComponentName> mPersistedRankingComponents;
+
+    /**
+     * Flag whether the history changed since the last ranking was handed for
+     * writing, so its weights may be stale. They are written on flush.
+     */
+    private boolean mRankingWeightsChanged;
+
+    /**
+     * Flag whether a write is scheduled on the persistence thread.
+     */
+    private boolean mPersistScheduled;
+
+    /**
+     * Writes the pending changes, on the persistence thread.
      */
-    private boolean mCanReadHistoricalData = true;
+    private final Runnable mPersistRunnable = new Runnable() {
+        @Override
+        public void run() {
+            writePendingData();
+        }
+    };
 
     /**
-     * Flag whether the choice history was read. This is used to enforce that
-     * before calling {@link #persistHistoricalDataIfNeeded()} a call to
-     * {@link #persistHistoricalDataIfNeeded()} has been made. This aims to avoid a
+     * Flag whether reading the choice history was started. This is used to enforce that
+     * before calling {@link #persistHistoricalDataIfNeeded(HistoricalRecord)} a call to
+     * {@link #readHistoricalDataIfNeeded()} has been made. This aims to avoid a
      * scenario in which a choice history file exits, it is not read yet and
-     * it is overwritten. Note that always all historical records are read in
-     * full and the file is rewritten. This is necessary since we need to
-     * purge old records that are outside of the sliding window of past choices.
+     * it is overwritten. Note that the history is read only once, on the
+     * persistence thread ahead of any write, so pending writes only run once
+     * the read history has been merged.
      */
     private boolean mReadShareHistoryCalled = false;
 
+    /**
+     * Flag whether the read choice history has been merged into this model.
+     */
+    private boolean mHistoricalDataRead = false;
+
     /**
      * Flag whether the choice records have changed. In general many clients can
-     * share the same data model and {@link #persistHistoricalDataIfNeeded()} may be called
-     * by arbitrary of them any number of times. Therefore, this class guarantees
+     * share the same data model and {@link #persistHistoricalDataIfNeeded(HistoricalRecord)}
+     * may be called by arbitrary of them any number of times. Therefore, this class guarantees
      * that choice history will be persisted only if it has changed.
      */
     private boolean mHistoricalRecordsChanged = true;
 
+    /**
+     * Flag whether the state of the {@link IncrementalActivitySorter} matches
+     * the activities and the history, so it can be updated record by record.
+     */
+    private boolean mIncrementalSortValid = false;
+
     /**
      * Flag whether to reload the activities for the current intent.
      */
@@ -354,6 +624,17 @@ import android.util.Xml;
      * For example, sharing is different from importing.</strong>
      * </p>
      *
+     * <p>
+     * The registry keeps at most {@link #setRegistryMaxSize(int)} models and
+     * evicts the least recently used ones. An evicted model is still returned
+     * as long as a client, e.g. a view or an action provider, holds it, so it
+     * keeps its intent, listener and configuration. Its pending changes are
+     * written on eviction, and it stops following package changes until it
+     * is returned again. Only once it is garbage collected, calling this
+     * method for its file name creates a new model, which reads the history
+     * written by the evicted one.
+     * </p>
+     *
      * @param context Context for loading resources.
      * @param historyFileName File name with choice history, <code>null</code>
      *        if the model should not be backed by a file. In this case the activities
@@ -365,13 +646,100 @@ import android.util.Xml;
         synchronized (sRegistryLock) {
             ActivityChooserModel dataModel = sDataModelRegistry.get(historyFileName);
             if (dataModel == null) {
-                dataModel = new ActivityChooserModel(context, historyFileName);
+                WeakReference<ActivityChooserModel> evictedDataModel =
+                    sEvictedDataModels.remove(historyFileName);
+                dataModel = (evictedDataModel != null) ? evictedDataModel.get() : null;
+                if (dataModel != null) {
+                    dataModel.onRevived();
+                } else {
+                    dataModel = new ActivityChooserModel(context, historyFileName);
+                    // Preload the history so the first access never waits for the disk.
+                    dataModel.preloadHistoricalData();
+                }
                 sDataModelRegistry.put(historyFileName, dataModel);
+                trimRegistryLocked();
             }
             return dataModel;
         }
     }
 
+    /**
+     * Sets the maximal number of models kept in the registry. Defaults to
+     * {@link #DEFAULT_REGISTRY_MAX_SIZE}. Evicted models that clients still
+     * hold stay in use, so there may be more models than this.
+     *
+     * @param registryMaxSize The maximal registry size.
+     */
+    public static void setRegistryMaxSize(int registryMaxSize) {
+        synchronized (sRegistryLock) {
+            sRegistryMaxSize = registryMaxSize;
+            trimRegistryLocked();
+        }
+    }
+
+    /**
+     * Gets the maximal number of models kept in the registry.
+     *
+     * @return The maximal registry size.
+     */
+    public static int getRegistryMaxSize() {
+        synchronized (sRegistryLock) {
+            return sRegistryMaxSize;
+        }
+    }
+
+    /**
+     * Writes the pending history changes of all models in the registry right
+     * away, on the calling thread. Hosts can call this e.g. from
+     * {@link android.app.Activity#onPause()} or
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}.
+     *
+     * @see #flush()
+     */
+    public static void flushAll() {
+        List<ActivityChooserModel> dataModels;
+        synchronized (sRegistryLock) {
+            dataModels = new ArrayList<ActivityChooserModel>(sDataModelRegistry.values());
+            for (WeakReference<ActivityChooserModel> evictedDataModel
+                    : sEvictedDataModels.values()) {
+                ActivityChooserModel dataModel = evictedDataModel.get();
+                if (dataModel != null) {
+                    dataModels.add(dataModel);
+                }
+            }
+        }
+        for (ActivityChooserModel dataModel : dataModels) {
+            dataModel.flush();
+        }
+    }
+
+    /**
+     * Evicts the least recently used models until the registry is within its
+     * maximal size, and forgets the evicted models that were collected.
+     */
+    private static void trimRegistryLocked() {
+        Iterator<WeakReference<ActivityChooserModel>> evictedIterator =
+            sEvictedDataModels.values().iterator();
+        while (evictedIterator.hasNext()) {
+            if (evictedIterator.next().get() == null) {
+                evictedIterator.remove();
+            }
+        }
+        Iterator<Map.Entry<String, ActivityChooserModel>> iterator =
+            sDataModelRegistry.entrySet().iterator();
+        while (sDataModelRegistry.size() > sRegistryMaxSize && iterator.hasNext()) {
+            Map.Entry<String, ActivityChooserModel> entry = iterator.next();
+            iterator.remove();
+            ActivityChooserModel dataModel = entry.getValue();
+            sEvictedDataModels.put(entry.getKey(),
+                    new WeakReference<ActivityChooserModel>(dataModel));
+            dataModel.onEvicted();
+            if (DEBUG) {
+                Log.i(LOG_TAG, "Evicted model for " + entry.getKey());
+            }
+        }
+    }
+
     /**
      * Creates a new instance.
      *
@@ -380,13 +748,72 @@ import android.util.Xml;
      */
     private ActivityChooserModel(Context context, String historyFileName) {
         mContext = context.getApplicationContext();
+        mHistoricalRecords = new HistoricalRecordBuffer(DEFAULT_HISTORY_MAX_LENGTH, mComponents);
         if (!TextUtils.isEmpty(historyFileName)
                 && !historyFileName.endsWith(HISTORY_FILE_EXTENSION)) {
             mHistoryFileName = historyFileName + HISTORY_FILE_EXTENSION;
         } else {
             mHistoryFileName = historyFileName;
         }
-        mPackageMonitor.register(mContext, null, true);
+        if (!TextUtils.isEmpty(mHistoryFileName)) {
+            final String baseFileName = mHistoryFileName.substring(0,
+                    mHistoryFileName.length() - HISTORY_FILE_EXTENSION.length());
+            mHistoryLog = new HistoricalRecordLog(mContext,
+                    baseFileName + HistoricalRecordLog.LOG_FILE_EXTENSION);
+            mRankingFile = new RankingSnapshotFile(mContext,
+                    baseFileName + RankingSnapshotFile.RANKING_FILE_EXTENSION);
+        } else {
+            mHistoryLog = null;
+            mRankingFile = null;
+        }
+        mPackageChangeDispatcher = PackageChangeDispatcher.getInstance(mContext);
+        mPackageChangeDispatcher.setPackages(mPackageClient, Collections.<String>emptySet());
+    }
+
+    /**
+     * Releases what the registry held for this model once it is evicted: its
+     * pending changes are written on the persistence thread, and it stops
+     * following package changes. Its state in memory stays for the clients
+     * that still hold it.
+     */
+    private void onEvicted() {
+        mPackageChangeDispatcher.removeClient(mPackageClient);
+        getPersistHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Follows package changes again once this evicted model is returned from
+     * the registry, and reloads its activities off the UI thread, as packages
+     * may have changed meanwhile.
+     */
+    private void onRevived() {
+        synchronized (mInstanceLock) {
+            // Registers the package client again, for no packages until the reload.
+            invalidateResolutionCache(Collections.<String>emptySet(), true);
+            mReloadActivities = true;
+        }
+        getPersistHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mInstanceLock) {
+                    ensureConsistentState();
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts reading the history off the UI thread, if not done yet.
+     */
+    private void preloadHistoricalData() {
+        synchronized (mInstanceLock) {
+            readHistoricalDataIfNeeded();
+        }
     }
 
     /**
@@ -395,6 +822,11 @@ import android.util.Xml;
      * <strong>Note:</strong> Clients must set only semantically similar
      * intents for each data model.
      * <p>
+     * <p>
+     * Setting an intent with the same signature as the current one, e.g. only
+     * differing in extras, keeps the resolved activities. Otherwise they are
+     * taken from the resolution cache or queried from the package manager.
+     * </p>
      *
      * @param intent The intent.
      */
@@ -404,11 +836,40 @@ import android.util.Xml;
                 return;
             }
             mIntent = intent;
+            final String intentSignature = (intent != null) ? getIntentSignature(intent) : null;
+            if (TextUtils.equals(mIntentSignature, intentSignature)) {
+                // Resolves to the same activities, the new intent is only used for launching.
+                return;
+            }
+            mIntentSignature = intentSignature;
             mReloadActivities = true;
             ensureConsistentState();
         }
     }
 
+    /**
+     * Gets the number of activity loads that were served by the resolution
+     * cache, without querying the package manager.
+     *
+     * @return The hit count.
+     */
+    public int getResolutionCacheHitCount() {
+        synchronized (mInstanceLock) {
+            return mResolutionCacheHitCount;
+        }
+    }
+
+    /**
+     * Gets the number of activity loads that had to query the package manager.
+     *
+     * @return The miss count.
+     */
+    public int getResolutionCacheMissCount() {
+        synchronized (mInstanceLock) {
+            return mResolutionCacheMissCount;
+        }
+    }
+
     /**
      * Gets the intent for which a activity is being chosen.
      *
@@ -420,18 +881,29 @@ import android.util.Xml;
         }
     }
 
+    /**
+     * Gets the published state: the activities that can handle the intent
+     * in their order, and the history size. It is immutable, so clients can
+     * hold it for a whole loop, and choose from it with
+     * {@link #chooseActivity(Snapshot, int)} even if the activities change
+     * meanwhile.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
     /**
      * Gets the number of activities that can handle the intent.
      *
      * @return The activity count.
      *
      * @see #setIntent(Intent)
+     * @see #getSnapshot()
      */
     public int getActivityCount() {
-        synchronized (mInstanceLock) {
-            ensureConsistentState();
-            return mActivities.size();
-        }
+        return mSnapshot.activities.length;
     }
 
     /**
@@ -443,10 +915,7 @@ import android.util.Xml;
      * @see #setIntent(Intent)
      */
     public ResolveInfo getActivity(int index) {
-        synchronized (mInstanceLock) {
-            ensureConsistentState();
-            return mActivities.get(index).resolveInfo;
-        }
+        return mSnapshot.activities[index];
     }
 
     /**
@@ -457,18 +926,28 @@ import android.util.Xml;
      * @return The index if found, -1 otherwise.
      */
     public int getActivityIndex(ResolveInfo activity) {
-        synchronized (mInstanceLock) {
-            ensureConsistentState();
-            List<ActivityResolveInfo> activities = mActivities;
-            final int activityCount = activities.size();
-            for (int i = 0; i < activityCount; i++) {
-                ActivityResolveInfo currentActivity = activities.get(i);
-                if (currentActivity.resolveInfo == activity) {
-                    return i;
-                }
-            }
-            return INVALID_INDEX;
-        }
+        return mSnapshot.getActivityIndex(activity);
+    }
+
+    /**
+     * Gets an id of the activity at a given index that stays the same while
+     * the activity is available, also when the order changes.
+     *
+     * @param index The index.
+     * @return The id.
+     */
+    long getActivityId(int index) {
+        return mSnapshot.activityIds[index];
+    }
+
+    /**
+     * Gets the version of the published state, which changes whenever the
+     * activities, their order or the history size change.
+     *
+     * @return The version.
+     */
+    int getSnapshotVersion() {
+        return mSnapshot.version;
     }
 
     /**
@@ -488,8 +967,28 @@ import android.util.Xml;
      *
      * @see HistoricalRecord
      * @see OnChooseActivityListener
+     * @see #chooseActivity(Snapshot, int)
      */
     public Intent chooseActivity(int index) {
+        return chooseActivity(mSnapshot, index);
+    }
+
+    /**
+     * Chooses an activity of a snapshot to handle the current intent, like
+     * {@link #chooseActivity(int)}. The index is resolved against the given
+     * snapshot, so the activity the client showed is chosen even if the
+     * activities have been reloaded meanwhile.
+     *
+     * @param snapshot The snapshot the client read the index from.
+     * @param index The index of the activity in the snapshot.
+     * @return An {@link Intent} for launching the activity or null if the
+     *         policy has consumed the intent, there is not current intent
+     *         set via {@link #setIntent(Intent)}, or the activity is no
+     *         longer available.
+     *
+     * @see #getSnapshot()
+     */
+    public Intent chooseActivity(Snapshot snapshot, int index) {
         synchronized (mInstanceLock) {
             if (mIntent == null) {
                 return null;
@@ -497,23 +996,22 @@ import android.util.Xml;
 
             ensureConsistentState();
 
-            ActivityResolveInfo chosenActivity = mActivities.get(index);
+            ActivityResolveInfo chosenActivity = findActivityLocked(snapshot, index);
+            if (chosenActivity == null) {
+                return null;
+            }
 
             ComponentName chosenName = new ComponentName(
                     chosenActivity.resolveInfo.activityInfo.packageName,
                     chosenActivity.resolveInfo.activityInfo.name);
 
-            Intent choiceIntent = new Intent(mIntent);
-            
-            /*Sometimes need the secondary intent for Collectionista: scan add*/
-            if(chosenActivity.isSecondary) {
-        		PackageManager pm = mContext.getPackageManager();
-        		//Check if device has autofocus camera //BUGSOLVED #801777 //TODO: later add a textual input for a query so this switch can happen a bit later.
-        		if(pm.hasSystemFeature(PackageManager.FEATURE_CAMERA) && pm.hasSystemFeature(PackageManager.FEATURE_CAMERA_AUTOFOCUS)){
-        			choiceIntent.addCategory(COLLECTIONISTA_CATEGORY_SCAN_ADD); //TODO: ActionBarPoirot
-        		}
-            }
-            
+            Intent choiceIntent = null;
+            if (chosenActivity.isSecondary && mSecondaryIntentProvider != null) {
+                choiceIntent = mSecondaryIntentProvider.getSecondaryIntent(mContext, mIntent);
+            }
+            if (choiceIntent == null) {
+                choiceIntent = new Intent(mIntent);
+            }
             choiceIntent.setComponent(chosenName);
 
             if (mActivityChoserModelPolicy != null) {
@@ -555,13 +1053,7 @@ import android.util.Xml;
      * @see #getActivity(int)
      */
     public ResolveInfo getDefaultActivity() {
-        synchronized (mInstanceLock) {
-            ensureConsistentState();
-            if (!mActivities.isEmpty()) {
-                return mActivities.get(0).resolveInfo;
-            }
-        }
-        return null;
+        return mSnapshot.getDefaultActivity();
     }
 
     /**
@@ -573,12 +1065,32 @@ import android.util.Xml;
      * it will stay as default for awhile.
      *
      * @param index The index of the activity to set as default.
+     *
+     * @see #setDefaultActivity(Snapshot, int)
      */
     public void setDefaultActivity(int index) {
+        setDefaultActivity(mSnapshot, index);
+    }
+
+    /**
+     * Sets an activity of a snapshot as the default, like
+     * {@link #setDefaultActivity(int)}. The index is resolved against the
+     * given snapshot, and nothing happens if the activity is no longer
+     * available.
+     *
+     * @param snapshot The snapshot the client read the index from.
+     * @param index The index of the activity in the snapshot.
+     *
+     * @see #getSnapshot()
+     */
+    public void setDefaultActivity(Snapshot snapshot, int index) {
         synchronized (mInstanceLock) {
             ensureConsistentState();
 
-            ActivityResolveInfo newDefaultActivity = mActivities.get(index);
+            ActivityResolveInfo newDefaultActivity = findActivityLocked(snapshot, index);
+            if (newDefaultActivity == null) {
+                return;
+            }
             ActivityResolveInfo oldDefaultActivity = mActivities.get(0);
 
             final float weight;
@@ -599,16 +1111,53 @@ import android.util.Xml;
         }
     }
 
+    /**
+     * Finds the current activity for an index into a published snapshot:
+     * the same resolved activity, or else the same occurrence of its
+     * component if the activities have been reloaded since.
+     *
+     * @param snapshot The snapshot.
+     * @param index The index of the activity in the snapshot.
+     * @return The activity, or <code>null</code> if no longer available.
+     */
+    private ActivityResolveInfo findActivityLocked(Snapshot snapshot, int index) {
+        final ResolveInfo resolveInfo = snapshot.activities[index];
+        final long activityId = snapshot.activityIds[index];
+        final int activityCount = mActivities.size();
+        for (int i = 0; i < activityCount; i++) {
+            ActivityResolveInfo activity = mActivities.get(i);
+            if (activity.resolveInfo == resolveInfo) {
+                return activity;
+            }
+        }
+        final int componentId = (int) activityId;
+        int occurrence = (int) (activityId >>> 32);
+        for (int i = 0; i < activityCount; i++) {
+            ActivityResolveInfo activity = mActivities.get(i);
+            if (activity.componentId == componentId && occurrence-- == 0) {
+                return activity;
+            }
+        }
+        return null;
+    }
+
     /**
      * Persists the history data to the backing file if the latter
      * was provided. Calling this method before a call to {@link #readHistoricalDataIfNeeded()}
      * throws an exception. Calling this method more than one without choosing an
      * activity has not effect.
+     * <p>
+     * The added record is appended to the history log. The log is only compacted,
+     * by rewriting it with the current records, once the pruned records it still
+     * contains exceed the max history size.
+     * </p>
+     *
+     * @param addedRecord The record that was just added, <code>null</code> if none.
      *
      * @throws IllegalStateException If this method is called before a call to
      *         {@link #readHistoricalDataIfNeeded()}.
      */
-    private void persistHistoricalDataIfNeeded() {
+    private void persistHistoricalDataIfNeeded(HistoricalRecord addedRecord) {
         if (!mReadShareHistoryCalled) {
             throw new IllegalStateException("No preceding call to #readHistoricalData");
         }
@@ -616,9 +1165,126 @@ import android.util.Xml;
             return;
         }
         mHistoricalRecordsChanged = false;
-        if (!TextUtils.isEmpty(mHistoryFileName)) {
-            new PersistHistoryAsyncTask().executeOnExecutor(AsyncTask.SERIAL_EXECUTOR,
-                    new ArrayList<HistoricalRecord>(mHistoricalRecords), mHistoryFileName);
+        mRankingWeightsChanged = true;
+        if (mHistoryLog == null) {
+            return;
+        }
+        final int prunedLoggedRecordCount = mLoggedRecordCount + 1 - mHistoricalRecords.size();
+        if (addedRecord != null && !mHistoryLogNeedsRewrite
+                && prunedLoggedRecordCount <= mHistoryMaxSize) {
+            mLoggedRecordCount++;
+            if (!mPendingRewrite) {
+                mPendingAppendedRecords.add(addedRecord);
+            }
+        } else {
+            mHistoryLogNeedsRewrite = false;
+            mLoggedRecordCount = mHistoricalRecords.size();
+            mPendingRewrite = true;
+            mPendingAppendedRecords.clear();
+        }
+        schedulePersistLocked();
+    }
+
+    /**
+     * Schedules a write of the pending changes on the persistence thread, if
+     * none is scheduled yet. Changes made meanwhile go into the same write.
+     */
+    private void schedulePersistLocked() {
+        if (!mPersistScheduled) {
+            mPersistScheduled = true;
+            getPersistHandler().postDelayed(mPersistRunnable, PERSIST_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Gets the handler of the persistence thread, starting the thread on first use.
+     *
+     * @return The handler.
+     */
+    private static Handler getPersistHandler() {
+        synchronized (sPersistThreadLock) {
+            if (sPersistHandler == null) {
+                HandlerThread thread = new HandlerThread("ActivityChooserModel",
+                        android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                thread.start();
+                sPersistHandler = new Handler(thread.getLooper());
+            }
+            return sPersistHandler;
+        }
+    }
+
+    /**
+     * Writes the pending history changes right away, on the calling thread,
+     * instead of waiting for the scheduled write, and the ranking if its
+     * weights changed. Hosts can call this e.g.
+     * from {@link android.app.Activity#onPause()}. Changes are held back
+     * until the history has been read, so they cannot be flushed before.
+     *
+     * @see #flushAll()
+     */
+    public void flush() {
+        synchronized (mInstanceLock) {
+            if (!mHistoricalDataRead) {
+                // The scheduled write runs after the read on the persistence thread.
+                return;
+            }
+            if (mRankingFile != null && mRankingWeightsChanged) {
+                // The order did not change since, but the weights did.
+                setPendingRankingLocked(getRankedComponentsLocked());
+            }
+        }
+        getPersistHandler().removeCallbacks(mPersistRunnable);
+        writePendingData();
+    }
+
+    /**
+     * Writes the pending changes to the history log and the ranking file.
+     */
+    private void writePendingData() {
+        synchronized (mPersistLock) {
+            List<HistoricalRecord> records = null;
+            boolean rewrite;
+            RankingSnapshotFile.Ranking ranking;
+            synchronized (mInstanceLock) {
+                mPersistScheduled = false;
+                rewrite = mPendingRewrite;
+                if (rewrite) {
+                    records = new ArrayList<HistoricalRecord>(mHistoricalRecords);
+                } else if (!mPendingAppendedRecords.isEmpty()) {
+                    records = new ArrayList<HistoricalRecord>(mPendingAppendedRecords);
+                }
+                mPendingRewrite = false;
+                mPendingAppendedRecords.clear();
+                ranking = mPendingRanking;
+                mPendingRanking = null;
+            }
+            if (records != null) {
+                try {
+                    if (rewrite) {
+                        mHistoryLog.rewrite(records);
+                        // The log now holds the history, drop a migrated XML file if any.
+                        if (mContext.getFileStreamPath(mHistoryFileName).exists()) {
+                            mContext.deleteFile(mHistoryFileName);
+                        }
+                    } else {
+                        mHistoryLog.append(records);
+                    }
+                } catch (IOException ioe) {
+                    Log.e(LOG_TAG, "Error writing historical records log: "
+                            + mHistoryLog.getFileName(), ioe);
+                    synchronized (mInstanceLock) {
+                        // The records stay in memory, the next write rewrites them all.
+                        mHistoryLogNeedsRewrite = true;
+                    }
+                }
+            }
+            if (ranking != null) {
+                try {
+                    mRankingFile.write(ranking);
+                } catch (IOException ioe) {
+                    Log.e(LOG_TAG, "Error writing ranking file", ioe);
+                }
+            }
         }
     }
 
@@ -626,6 +1292,8 @@ import android.util.Xml;
      * Sets the sorter for ordering activities based on historical data and an intent.
      *
      * @param activitySorter The sorter.
+     * @throws IllegalStateException If the sorter is a {@link FrecencySorter}
+     *         that is set on another model.
      *
      * @see ActivitySorter
      */
@@ -634,10 +1302,40 @@ import android.util.Xml;
             if (mActivitySorter == activitySorter) {
                 return;
             }
+            if (activitySorter instanceof FrecencySorter) {
+                // Throws before anything changes if it is set on another model.
+                ((FrecencySorter) activitySorter).attach(this);
+            }
+            if (mActivitySorter instanceof FrecencySorter) {
+                ((FrecencySorter) mActivitySorter).detach(this);
+            }
             mActivitySorter = activitySorter;
             if (sortActivitiesIfNeeded()) {
-                notifyChanged();
+                onStateChanged();
+            }
+        }
+    }
+
+    /**
+     * Sets the provider of the secondary intent, whose activities are offered
+     * next to the ones for the intent itself. Defaults to a
+     * {@link ScanAddSecondaryIntentProvider}.
+     *
+     * @param secondaryIntentProvider The provider, <code>null</code> for none.
+     *
+     * @see SecondaryIntentProvider
+     */
+    public void setSecondaryIntentProvider(SecondaryIntentProvider secondaryIntentProvider) {
+        synchronized (mInstanceLock) {
+            if (mSecondaryIntentProvider == secondaryIntentProvider) {
+                return;
             }
+            mSecondaryIntentProvider = secondaryIntentProvider;
+            // The cached secondary activities came from the previous provider.
+            mResolutionCache.clear();
+            updateResolvedPackages();
+            mReloadActivities = true;
+            ensureConsistentState();
         }
     }
 
@@ -660,10 +1358,13 @@ import android.util.Xml;
                 return;
             }
             mHistoryMaxSize = historyMaxSize;
+            // Pruning several records at once is followed by a full sort, the
+            // order of equal weights must not depend on the pruning order.
+            mIncrementalSortValid = false;
             pruneExcessiveHistoricalRecordsIfNeeded();
-            if (sortActivitiesIfNeeded()) {
-                notifyChanged();
-            }
+            mHistoricalRecords.setCapacity(historyMaxSize);
+            sortActivitiesIfNeeded();
+            onStateChanged();
         }
     }
 
@@ -684,32 +1385,171 @@ import android.util.Xml;
      * @return The history size.
      */
     public int getHistorySize() {
-        synchronized (mInstanceLock) {
-            ensureConsistentState();
-            return mHistoricalRecords.size();
-        }
-    }
-
-    @Override
-    protected void finalize() throws Throwable {
-        super.finalize();
-        mPackageMonitor.unregister();
+        return mSnapshot.historySize;
     }
 
     /**
      * Ensures the model is in a consistent state which is the
-     * activities for the current intent have been loaded, the
-     * most recent history has been read, and the activities
-     * are sorted.
+     * activities for the current intent have been loaded, reading
+     * the history has been started, and the activities are sorted.
+     * <p>
+     * This is done eagerly on every change, so readers only look at the
+     * published {@link Snapshot}.
+     * </p>
      */
     private void ensureConsistentState() {
         boolean stateChanged = loadActivitiesIfNeeded();
         stateChanged |= readHistoricalDataIfNeeded();
-        pruneExcessiveHistoricalRecordsIfNeeded();
         if (stateChanged) {
             sortActivitiesIfNeeded();
+            onStateChanged();
+        }
+    }
+
+    /**
+     * Publishes a new snapshot of the activities and the history size and
+     * notifies the observers, on the main thread. Nothing is published if
+     * neither changed, e.g. when the read history confirms the order of the
+     * last known ranking.
+     */
+    private void onStateChanged() {
+        final int activityCount = mActivities.size();
+        ResolveInfo[] activities = new ResolveInfo[activityCount];
+        long[] activityIds = new long[activityCount];
+        // A component may be resolved more than once, e.g. by the secondary intent.
+        int[] occurrences = new int[mComponentIds.size()];
+        for (int i = 0; i < activityCount; i++) {
+            ActivityResolveInfo activity = mActivities.get(i);
+            activities[i] = activity.resolveInfo;
+            activityIds[i] = ((long) occurrences[activity.componentId]++ << 32)
+                    | activity.componentId;
+        }
+        int historySize = mHistoricalRecords.size();
+        if (mColdStartRanking != null) {
+            historySize = Math.max(historySize, mColdStartRanking.historySize);
+        }
+        final Snapshot snapshot = mSnapshot;
+        if (historySize == snapshot.historySize
+                && Arrays.equals(activities, snapshot.activities)) {
+            return;
+        }
+        mSnapshot = new Snapshot(snapshot.version + 1, activities, activityIds, historySize);
+        persistRankingIfNeeded();
+        if (Looper.myLooper() == Looper.getMainLooper()) {
             notifyChanged();
+        } else {
+            sMainHandler.post(mNotifyChangedRunnable);
+        }
+    }
+
+    /**
+     * Keeps the last known ranking read off the UI thread, and orders the
+     * loaded activities by it if the history has not been read yet.
+     *
+     * @param ranking The read ranking, or <code>null</code> if there is none.
+     */
+    private void onRankingRead(RankingSnapshotFile.Ranking ranking) {
+        if (ranking == null || mHistoricalDataRead) {
+            return;
+        }
+        mColdStartRanking = ranking;
+        final List<ComponentName> components = ranking.components;
+        final int componentCount = components.size();
+        mColdStartPositions = new HashMap<ComponentName, Integer>(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            ComponentName component = components.get(i);
+            if (component != null && !mColdStartPositions.containsKey(component)) {
+                mColdStartPositions.put(component, i);
+            }
+        }
+        if (!mActivities.isEmpty()) {
+            applyColdStartRankingIfNeeded();
+            onStateChanged();
+        }
+    }
+
+    /**
+     * Orders freshly loaded activities by the last known ranking, if it has
+     * been read and the history has not been read yet. Until then they keep
+     * their resolution order.
+     */
+    private void applyColdStartRankingIfNeeded() {
+        if (mHistoricalDataRead || mColdStartRanking == null) {
+            return;
+        }
+        final int activityCount = mActivities.size();
+        final int[] positions = new int[mComponentIds.size()];
+        Arrays.fill(positions, Integer.MAX_VALUE);
+        for (int i = 0; i < activityCount; i++) {
+            ActivityResolveInfo activity = mActivities.get(i);
+            ActivityInfo activityInfo = activity.resolveInfo.activityInfo;
+            Integer position = mColdStartPositions.get(
+                    new ComponentName(activityInfo.packageName, activityInfo.name));
+            if (position != null) {
+                positions[activity.componentId] = position;
+                activity.weight = mColdStartRanking.weights[position];
+            }
+        }
+        // Stable, so activities missing from the ranking keep their resolution order.
+        Collections.sort(mActivities, new Comparator<ActivityResolveInfo>() {
+            @Override
+            public int compare(ActivityResolveInfo lhs, ActivityResolveInfo rhs) {
+                final int lhsPosition = positions[lhs.componentId];
+                final int rhsPosition = positions[rhs.componentId];
+                return (lhsPosition < rhsPosition) ? -1 : (lhsPosition == rhsPosition ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Schedules a write of the ranking of the published activities, once it
+     * is based on the read history, if their order changed. Changes of only
+     * the weights are written on {@link #flush()}, so a choice that keeps
+     * the order does not rewrite the file.
+     */
+    private void persistRankingIfNeeded() {
+        if (mRankingFile == null || !mHistoricalDataRead) {
+            return;
+        }
+        List<ComponentName> components = getRankedComponentsLocked();
+        if (components.equals(mPersistedRankingComponents)) {
+            return;
+        }
+        setPendingRankingLocked(components);
+        schedulePersistLocked();
+    }
+
+    /**
+     * Gets the components of the activities, in their order.
+     *
+     * @return The components.
+     */
+    private List<ComponentName> getRankedComponentsLocked() {
+        final int activityCount = mActivities.size();
+        List<ComponentName> components = new ArrayList<ComponentName>(activityCount);
+        for (int i = 0; i < activityCount; i++) {
+            ActivityInfo activityInfo = mActivities.get(i).resolveInfo.activityInfo;
+            components.add(new ComponentName(activityInfo.packageName, activityInfo.name));
+        }
+        return components;
+    }
+
+    /**
+     * Sets the ranking to write with the next write: the components of the
+     * activities with their current weights.
+     *
+     * @param components The components of the activities, in their order.
+     */
+    private void setPendingRankingLocked(List<ComponentName> components) {
+        final int activityCount = mActivities.size();
+        float[] weights = new float[activityCount];
+        for (int i = 0; i < activityCount; i++) {
+            weights[i] = mActivities.get(i).weight;
         }
+        mPendingRanking = new RankingSnapshotFile.Ranking(components, weights,
+                mHistoricalRecords.size());
+        mPersistedRankingComponents = components;
+        mRankingWeightsChanged = false;
     }
 
     /**
@@ -720,10 +1560,11 @@ import android.util.Xml;
      * @return Whether sorting was performed.
      */
     private boolean sortActivitiesIfNeeded() {
+        mIncrementalSortValid = false;
         if (mActivitySorter != null && mIntent != null
                 && !mActivities.isEmpty() && !mHistoricalRecords.isEmpty()) {
-            mActivitySorter.sort(mIntent, mActivities,
-                    Collections.unmodifiableList(mHistoricalRecords));
+            mActivitySorter.sort(mIntent, mActivities, mHistoricalRecords);
+            mIncrementalSortValid = mActivitySorter instanceof IncrementalActivitySorter;
             return true;
         }
         return false;
@@ -731,77 +1572,282 @@ import android.util.Xml;
 
     /**
      * Loads the activities for the current intent if needed which is
-     * if they are not already loaded for the current intent.
+     * if they are not already loaded for the current intent. The resolved
+     * activities are taken from the resolution cache if possible.
      *
      * @return Whether loading was performed.
      */
     private boolean loadActivitiesIfNeeded() {
         if (mReloadActivities && mIntent != null) {
             mReloadActivities = false;
+            mIncrementalSortValid = false;
             mActivities.clear();
-            List<ResolveInfo> resolveInfos = mContext.getPackageManager()
-                    .queryIntentActivities(mIntent, PackageManager.MATCH_DEFAULT_ONLY);
+            ResolvedActivities resolvedActivities = mResolutionCache.get(mIntentSignature);
+            if (resolvedActivities != null) {
+                mResolutionCacheHitCount++;
+            } else {
+                mResolutionCacheMissCount++;
+                resolvedActivities = resolveActivities(mIntent);
+                mResolutionCache.put(mIntentSignature, resolvedActivities);
+                updateResolvedPackages();
+            }
+            if (DEBUG) {
+                Log.i(LOG_TAG, "Resolution cache hits: " + mResolutionCacheHitCount
+                        + ", misses: " + mResolutionCacheMissCount);
+            }
+            List<ResolveInfo> resolveInfos = resolvedActivities.primary;
             int resolveInfoCount = resolveInfos.size();
             for (int i = 0; i < resolveInfoCount; i++) {
                 ResolveInfo resolveInfo = resolveInfos.get(i);
-                mActivities.add(new ActivityResolveInfo(resolveInfo));
-            }
-            
-            /* Load secondary intents too for Collectionista: scan add*/
-    		PackageManager pm = mContext.getPackageManager();
-    		//Check if device has autofocus camera
-    		if(pm.hasSystemFeature(PackageManager.FEATURE_CAMERA) && pm.hasSystemFeature(PackageManager.FEATURE_CAMERA_AUTOFOCUS)){
-	            Intent intent = (Intent) mIntent.clone();
-	            intent.addCategory(COLLECTIONISTA_CATEGORY_SCAN_ADD);//TODO: ActionBarPoirot
-	            intent.addCategory("net.lp.collectionista.category.SCAN_ADD");
-	            resolveInfos = mContext.getPackageManager()
-	                    .queryIntentActivities(intent, 0);
-	            resolveInfoCount = resolveInfos.size();
-	            for (int i = 0; i < resolveInfoCount; i++) {
-	                ResolveInfo resolveInfo = resolveInfos.get(i);
-	                mActivities.add(new ActivityResolveInfo(resolveInfo, true));
-	            }
-    		}
-            
+                ActivityResolveInfo activity = new ActivityResolveInfo(resolveInfo);
+                internKeys(activity);
+                mActivities.add(activity);
+            }
+            resolveInfos = resolvedActivities.secondary;
+            resolveInfoCount = resolveInfos.size();
+            for (int i = 0; i < resolveInfoCount; i++) {
+                ResolveInfo resolveInfo = resolveInfos.get(i);
+                ActivityResolveInfo activity = new ActivityResolveInfo(resolveInfo, true);
+                internKeys(activity);
+                mActivities.add(activity);
+            }
+            applyColdStartRankingIfNeeded();
             return true;
         }
         return false;
     }
 
     /**
-     * Reads the historical data if necessary which is it has
-     * changed, there is a history file, and there is not persist
-     * in progress.
+     * Queries the package manager for the activities that can handle an
+     * intent and its secondary intent, if any, to be cached together.
+     *
+     * @param intent The intent.
+     * @return The resolved activities.
+     */
+    private ResolvedActivities resolveActivities(Intent intent) {
+        PackageManager pm = mContext.getPackageManager();
+        List<ResolveInfo> primary = pm.queryIntentActivities(intent,
+                PackageManager.MATCH_DEFAULT_ONLY);
+        List<ResolveInfo> secondary = Collections.emptyList();
+        Intent secondaryIntent = (mSecondaryIntentProvider != null)
+                ? mSecondaryIntentProvider.getSecondaryIntent(mContext, intent) : null;
+        if (secondaryIntent != null) {
+            secondary = pm.queryIntentActivities(secondaryIntent, 0);
+        }
+        return new ResolvedActivities(primary, secondary);
+    }
+
+    /**
+     * Gets the signature of an intent, which covers everything the package
+     * manager resolves activities by: action, type, categories, the data, and
+     * package or component. The whole data URI is included, as filters can
+     * match on its path and the package manager resolves the type of content
+     * from it, e.g. differently for a directory and one of its items. Extras
+     * are ignored.
+     *
+     * @param intent The intent.
+     * @return The signature.
+     */
+    private static String getIntentSignature(Intent intent) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(intent.getAction());
+        builder.append('|').append(intent.getType());
+        builder.append('|').append(intent.getData());
+        builder.append('|').append(intent.getPackage());
+        ComponentName component = intent.getComponent();
+        builder.append('|').append(component != null ? component.flattenToShortString() : null);
+        Set<String> categories = intent.getCategories();
+        if (categories != null) {
+            String[] sortedCategories = categories.toArray(new String[categories.size()]);
+            Arrays.sort(sortedCategories);
+            for (String category : sortedCategories) {
+                builder.append('|').append(category);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Removes the cached resolved activities that are affected by a package
+     * change. New packages may handle any intent, so they clear the whole cache.
+     *
+     * @param changedPackages The changed packages.
+     * @param packagesAdded Whether new packages were added.
+     */
+    private void invalidateResolutionCache(Set<String> changedPackages, boolean packagesAdded) {
+        if (packagesAdded) {
+            mResolutionCache.clear();
+        } else {
+            Iterator<ResolvedActivities> iterator = mResolutionCache.values().iterator();
+            while (iterator.hasNext()) {
+                if (!Collections.disjoint(iterator.next().packageNames, changedPackages)) {
+                    iterator.remove();
+                }
+            }
+        }
+        updateResolvedPackages();
+    }
+
+    /**
+     * Declares the packages of all cached resolved activities to the package
+     * change dispatcher, so this model is told only about changes to them.
+     */
+    private void updateResolvedPackages() {
+        Set<String> packageNames = new HashSet<String>();
+        for (ResolvedActivities resolvedActivities : mResolutionCache.values()) {
+            packageNames.addAll(resolvedActivities.packageNames);
+        }
+        mPackageChangeDispatcher.setPackages(mPackageClient, packageNames);
+    }
+
+    /**
+     * Starts reading the historical data off the UI thread if necessary which
+     * is if it was not started yet and there is a history file. Clients are
+     * notified when the read history has been merged.
      *
-     * @return Whether reading was performed.
+     * @return Whether the historical data changed synchronously, which it never does.
      */
     private boolean readHistoricalDataIfNeeded() {
-        if (mCanReadHistoricalData && mHistoricalRecordsChanged &&
-                !TextUtils.isEmpty(mHistoryFileName)) {
-            mCanReadHistoricalData = false;
+        if (!mReadShareHistoryCalled) {
             mReadShareHistoryCalled = true;
-            readHistoricalDataImpl();
-            return true;
+            if (mHistoryLog != null) {
+                // Posted before any write, so the writes follow the merged history.
+                getPersistHandler().post(new ReadHistoryRunnable());
+            }
         }
         return false;
     }
 
+    /**
+     * Merges the historical records read from the history file. Records that
+     * were added while reading are more recent and are kept after the read ones.
+     *
+     * @param readRecords The read records, oldest first.
+     * @param loggedRecordCount The number of records in the history log.
+     * @param needsRewrite Whether the history log has to be rewritten.
+     */
+    private void onHistoricalDataRead(List<HistoricalRecord> readRecords,
+            int loggedRecordCount, boolean needsRewrite) {
+        final int readRecordCount = readRecords.size();
+        for (int i = 0; i < readRecordCount; i++) {
+            internKeys(readRecords.get(i));
+        }
+        if (mHistoricalRecords.prependAll(readRecords) > 0) {
+            // The oldest read records did not fit.
+            mHistoricalRecordsChanged = true;
+        }
+        mIncrementalSortValid = false;
+        mHistoricalDataRead = true;
+        // From now on the order follows the history.
+        mColdStartRanking = null;
+        mColdStartPositions = null;
+        mLoggedRecordCount += loggedRecordCount;
+        mHistoryLogNeedsRewrite |= needsRewrite;
+        if (mHistoryLogNeedsRewrite && !mHistoricalRecords.isEmpty()) {
+            mHistoricalRecordsChanged = true;
+            persistHistoricalDataIfNeeded(null);
+        }
+        sortActivitiesIfNeeded();
+    }
+
     /**
      * Adds a historical record.
      *
      * @param historicalRecord The record to add.
-     * @return True if the record was added.
      */
-    private boolean addHisoricalRecord(HistoricalRecord historicalRecord) {
-        final boolean added = mHistoricalRecords.add(historicalRecord);
-        if (added) {
-            mHistoricalRecordsChanged = true;
-            pruneExcessiveHistoricalRecordsIfNeeded();
-            persistHistoricalDataIfNeeded();
+    private void addHisoricalRecord(HistoricalRecord historicalRecord) {
+        internKeys(historicalRecord);
+        HistoricalRecord prunedRecord = mHistoricalRecords.append(historicalRecord);
+        mHistoricalRecordsChanged = true;
+        if (mIncrementalSortValid) {
+            mIncrementalSortValid = ((IncrementalActivitySorter) mActivitySorter)
+                    .onHistoricalRecordAdded(mIntent, mActivities, historicalRecord);
+        }
+        if (prunedRecord != null) {
+            onHistoricalRecordPruned(prunedRecord);
+        }
+        persistHistoricalDataIfNeeded(historicalRecord);
+        if (!mIncrementalSortValid) {
             sortActivitiesIfNeeded();
-            notifyChanged();
         }
-        return added;
+        onStateChanged();
+    }
+
+    /**
+     * Assigns the interned component id to an activity.
+     *
+     * @param activity The activity.
+     */
+    private void internKeys(ActivityResolveInfo activity) {
+        ActivityInfo activityInfo = activity.resolveInfo.activityInfo;
+        activity.componentId = internComponent(
+                new ComponentName(activityInfo.packageName, activityInfo.name));
+    }
+
+    /**
+     * Assigns the interned component id to a historical record.
+     *
+     * @param historicalRecord The record.
+     */
+    private void internKeys(HistoricalRecord historicalRecord) {
+        if (historicalRecord.activity != null) {
+            historicalRecord.componentId = internComponent(historicalRecord.activity);
+        }
+    }
+
+    /**
+     * Gets the id of a component, interning it if new.
+     *
+     * @param component The component.
+     * @return The id, in <code>[0, mComponentIds.size())</code>.
+     */
+    private int internComponent(ComponentName component) {
+        Integer id = mComponentIds.get(component);
+        if (id == null) {
+            id = mComponentIds.size();
+            mComponentIds.put(component, id);
+            mComponents.add(component);
+            if (id == mComponentPackageIds.length) {
+                mComponentPackageIds = Arrays.copyOf(mComponentPackageIds, 2 * id);
+            }
+            mComponentPackageIds[id] = internPackage(component.getPackageName());
+        }
+        return id;
+    }
+
+    /**
+     * Gets the id of a package, interning it if new.
+     *
+     * @param packageName The package.
+     * @return The id, in <code>[0, mPackageIds.size())</code>.
+     */
+    private int internPackage(String packageName) {
+        Integer id = mPackageIds.get(packageName);
+        if (id == null) {
+            id = mPackageIds.size();
+            mPackageIds.put(packageName, id);
+        }
+        return id;
+    }
+
+    /**
+     * Sorts activities in place in descending order of weight. This is a
+     * stable insertion sort, which gives the same order as
+     * {@link Collections#sort(List)} without copying the short list.
+     *
+     * @param activities The activities.
+     */
+    private static void sortByWeight(List<ActivityResolveInfo> activities) {
+        final int activityCount = activities.size();
+        for (int i = 1; i < activityCount; i++) {
+            ActivityResolveInfo activity = activities.get(i);
+            int j = i - 1;
+            while (j >= 0 && activities.get(j).compareTo(activity) > 0) {
+                activities.set(j + 1, activities.get(j));
+                j--;
+            }
+            activities.set(j + 1, activity);
+        }
     }
 
     /**
@@ -814,15 +1860,33 @@ import android.util.Xml;
         }
         mHistoricalRecordsChanged = true;
         for (int i = 0; i < pruneCount; i++) {
-            HistoricalRecord prunedRecord = mHistoricalRecords.remove(0);
-            if (DEBUG) {
-                Log.i(LOG_TAG, "Pruned: " + prunedRecord);
-            }
+            onHistoricalRecordPruned(mHistoricalRecords.removeFirst());
+        }
+    }
+
+    /**
+     * Updates the order of the activities for a pruned record, if possible.
+     *
+     * @param prunedRecord The pruned record.
+     */
+    private void onHistoricalRecordPruned(HistoricalRecord prunedRecord) {
+        if (mIncrementalSortValid) {
+            mIncrementalSortValid = ((IncrementalActivitySorter) mActivitySorter)
+                    .onHistoricalRecordPruned(mIntent, mActivities, prunedRecord);
+        }
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Pruned: " + prunedRecord);
         }
     }
 
     /**
      * Represents a record in the history.
+     * <p>
+     * The model does not keep these records, only their interned component,
+     * time and weight. The records of the history handed to an
+     * {@link ActivitySorter} are created when accessed, so a sorter should
+     * not rely on their identity.
+     * </p>
      */
     public final static class HistoricalRecord {
 
@@ -841,6 +1905,11 @@ import android.util.Xml;
          */
         public final float weight;
 
+        /**
+         * The interned id of the activity in the model, or -1 if not interned.
+         */
+        int componentId = -1;
+
         /**
          * Creates a new instance.
          *
@@ -865,6 +1934,19 @@ import android.util.Xml;
             this.weight = weight;
         }
 
+        /**
+         * Creates a new instance of an interned record.
+         *
+         * @param activityName The interned activity name.
+         * @param time The time the activity was chosen.
+         * @param weight The weight of the record.
+         * @param componentId The interned id of the activity, -1 for none.
+         */
+        HistoricalRecord(ComponentName activityName, long time, float weight, int componentId) {
+            this(activityName, time, weight);
+            this.componentId = componentId;
+        }
+
         @Override
         public int hashCode() {
             final int prime = 31;
@@ -932,6 +2014,11 @@ import android.util.Xml;
 
 		public boolean isSecondary;
 
+        /**
+         * The interned id of the activity in the model.
+         */
+        int componentId = -1;
+
         /**
          * Creates a new instance.
          *
@@ -991,41 +2078,154 @@ import android.util.Xml;
     }
 
     /**
-     * Default activity sorter implementation.
+     * Activity sorter that weighs activities by historical records with the
+     * same interned key. The keys are assigned when activities are loaded and
+     * records are read, so sorting allocates nothing.
+     * <p>
+     * With every matching record the weight of all older matching records
+     * decays by the same coefficient. So an added record scales all weights
+     * and adds its own weight to one activity, and a pruned record subtracts
+     * its decayed weight from one activity. This is done on running scores in
+     * double precision. When neighbouring scores are too close to be sure of
+     * the order the full sort computes in single precision, the incremental
+     * update gives up and a full sort is done.
+     * </p>
      */
-    private final class DefaultSorter implements ActivitySorter {
+    private abstract class InternedKeySorter implements IncrementalActivitySorter {
         private static final float WEIGHT_DECAY_COEFFICIENT = 0.95f;
 
-        private final Map<String, ActivityResolveInfo> mPackageNameToActivityMap =
-            new HashMap<String, ActivityResolveInfo>();
+        /**
+         * Relative difference of neighbouring scores below which the order is
+         * not trusted.
+         */
+        private static final double SCORE_TOLERANCE = 1e-4;
+
+        /**
+         * Index of the activity per key, -1 for none. Reused across sorts.
+         */
+        private int[] mKeyToActivityIndex = new int[0];
+
+        /**
+         * Running score per key of the sorted activities.
+         */
+        private double[] mScores = new double[0];
+
+        /**
+         * The number of matching historical records per key of the sorted
+         * activities, so a score without records is exactly zero.
+         */
+        private int[] mRecordCounts = new int[0];
+
+        /**
+         * The number of historical records matching a sorted activity.
+         */
+        private int mMatchingRecordCount;
+
+        /**
+         * Whether several sorted activities have the same key, in which case
+         * the weight goes to the last one and moves around between sorts.
+         */
+        private boolean mHasDuplicateKeys;
+
+        /**
+         * Gets the number of keys, all keys are smaller.
+         *
+         * @return The key count.
+         */
+        abstract int getKeyCount();
+
+        /**
+         * Gets the key of an interned component.
+         *
+         * @param componentId The component id.
+         * @return The key.
+         */
+        abstract int getKey(int componentId);
+
+        /**
+         * Gets the key of an activity.
+         *
+         * @param activity The activity.
+         * @return The key.
+         */
+        private int getKey(ActivityResolveInfo activity) {
+            return getKey(activity.componentId);
+        }
+
+        /**
+         * Gets the key of a historical record.
+         *
+         * @param historicalRecord The record.
+         * @return The key, or -1 for none.
+         */
+        private int getKey(HistoricalRecord historicalRecord) {
+            return (historicalRecord.componentId >= 0) ? getKey(historicalRecord.componentId) : -1;
+        }
 
         public void sort(Intent intent, List<ActivityResolveInfo> activities,
                 List<HistoricalRecord> historicalRecords) {
-            Map<String, ActivityResolveInfo> packageNameToActivityMap =
-                mPackageNameToActivityMap;
-            packageNameToActivityMap.clear();
+            final int keyCount = getKeyCount();
+            if (mKeyToActivityIndex.length < keyCount) {
+                final int capacity = Math.max(keyCount, 2 * mKeyToActivityIndex.length);
+                mKeyToActivityIndex = new int[capacity];
+                Arrays.fill(mKeyToActivityIndex, -1);
+                mScores = new double[capacity];
+                mRecordCounts = new int[capacity];
+            }
+            final int[] keyToActivityIndex = mKeyToActivityIndex;
+            final double[] scores = mScores;
+            mHasDuplicateKeys = false;
 
             final int activityCount = activities.size();
             for (int i = 0; i < activityCount; i++) {
                 ActivityResolveInfo activity = activities.get(i);
                 activity.weight = 0.0f;
-                String packageName = activity.resolveInfo.activityInfo.packageName;
-                packageNameToActivityMap.put(packageName, activity);
+                final int key = getKey(activity);
+                mHasDuplicateKeys |= keyToActivityIndex[key] >= 0;
+                keyToActivityIndex[key] = i;
+                scores[key] = 0;
+                mRecordCounts[key] = 0;
             }
 
+            // Go over the columns of the model's own history, not the records.
+            final HistoricalRecordBuffer buffer = (historicalRecords == mHistoricalRecords)
+                    ? mHistoricalRecords : null;
             final int lastShareIndex = historicalRecords.size() - 1;
             float nextRecordWeight = 1;
+            double nextRecordScore = 1;
+            int matchingRecordCount = 0;
             for (int i = lastShareIndex; i >= 0; i--) {
-                HistoricalRecord historicalRecord = historicalRecords.get(i);
-                String packageName = historicalRecord.activity.getPackageName();
-                ActivityResolveInfo activity = packageNameToActivityMap.get(packageName);
-                if (activity != null) {
-                    activity.weight += historicalRecord.weight * nextRecordWeight;
+                final int componentId;
+                final float recordWeight;
+                if (buffer != null) {
+                    componentId = buffer.getComponentId(i);
+                    recordWeight = buffer.getWeight(i);
+                } else {
+                    HistoricalRecord historicalRecord = historicalRecords.get(i);
+                    componentId = historicalRecord.componentId;
+                    recordWeight = historicalRecord.weight;
+                }
+                if (componentId < 0) {
+                    continue;
+                }
+                final int key = getKey(componentId);
+                final int activityIndex = keyToActivityIndex[key];
+                if (activityIndex >= 0) {
+                    activities.get(activityIndex).weight += recordWeight * nextRecordWeight;
                     nextRecordWeight = nextRecordWeight * WEIGHT_DECAY_COEFFICIENT;
+                    scores[key] += recordWeight * nextRecordScore;
+                    nextRecordScore *= WEIGHT_DECAY_COEFFICIENT;
+                    mRecordCounts[key]++;
+                    matchingRecordCount++;
                 }
             }
+            mMatchingRecordCount = matchingRecordCount;
+
+            for (int i = 0; i < activityCount; i++) {
+                keyToActivityIndex[getKey(activities.get(i))] = -1;
+            }
 
-            Collections.sort(activities);
+            sortByWeight(activities);
 
             if (DEBUG) {
                 for (int i = 0; i < activityCount; i++) {
@@ -1033,44 +2233,408 @@ import android.util.Xml;
                 }
             }
         }
+
+        public boolean onHistoricalRecordAdded(Intent intent, List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord) {
+            final int activityIndex = findActivityIndex(activities, historicalRecord);
+            if (activityIndex < 0) {
+                // Not matching any activity, so the weights do not change.
+                return !mHasDuplicateKeys;
+            }
+            if (mHasDuplicateKeys) {
+                return false;
+            }
+            final double[] scores = mScores;
+            final int activityCount = activities.size();
+            for (int i = 0; i < activityCount; i++) {
+                scores[getKey(activities.get(i))] *= WEIGHT_DECAY_COEFFICIENT;
+            }
+            ActivityResolveInfo activity = activities.get(activityIndex);
+            scores[getKey(activity)] += historicalRecord.weight;
+            mRecordCounts[getKey(activity)]++;
+            mMatchingRecordCount++;
+            for (int i = 0; i < activityCount; i++) {
+                ActivityResolveInfo scaledActivity = activities.get(i);
+                scaledActivity.weight = (float) scores[getKey(scaledActivity)];
+            }
+
+            // The weight only grew, move the activity up before lower weights.
+            int i = activityIndex;
+            while (i > 0 && activities.get(i - 1).compareTo(activity) > 0) {
+                activities.set(i, activities.get(i - 1));
+                i--;
+            }
+            activities.set(i, activity);
+            return isOrderCertain(activities);
+        }
+
+        public boolean onHistoricalRecordPruned(Intent intent, List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord) {
+            final int activityIndex = findActivityIndex(activities, historicalRecord);
+            if (activityIndex < 0) {
+                return !mHasDuplicateKeys;
+            }
+            if (mHasDuplicateKeys) {
+                return false;
+            }
+            // The oldest matching record has decayed once per newer matching record.
+            ActivityResolveInfo activity = activities.get(activityIndex);
+            final int key = getKey(activity);
+            mScores[key] -= historicalRecord.weight
+                    * Math.pow(WEIGHT_DECAY_COEFFICIENT, mMatchingRecordCount - 1);
+            if (--mRecordCounts[key] == 0) {
+                // Do not leave a rounding error behind.
+                mScores[key] = 0;
+            }
+            mMatchingRecordCount--;
+            activity.weight = (float) mScores[key];
+
+            // The weight only shrank, move the activity down after higher weights.
+            final int activityCount = activities.size();
+            int i = activityIndex;
+            while (i < activityCount - 1 && activity.compareTo(activities.get(i + 1)) > 0) {
+                activities.set(i, activities.get(i + 1));
+                i++;
+            }
+            activities.set(i, activity);
+            return isOrderCertain(activities);
+        }
+
+        /**
+         * Finds the activity a historical record is weighed for.
+         *
+         * @param activities The sorted activities.
+         * @param historicalRecord The record.
+         * @return The index of the activity, or -1 if none.
+         */
+        private int findActivityIndex(List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord) {
+            final int key = getKey(historicalRecord);
+            if (key < 0) {
+                return -1;
+            }
+            final int activityCount = activities.size();
+            for (int i = 0; i < activityCount; i++) {
+                if (getKey(activities.get(i)) == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Checks that the running scores of neighbouring activities are far
+         * enough apart, or exactly zero, for the full sort to order them the
+         * same despite rounding.
+         *
+         * @param activities The sorted activities.
+         * @return Whether the order is certain.
+         */
+        private boolean isOrderCertain(List<ActivityResolveInfo> activities) {
+            final double[] scores = mScores;
+            final int activityCount = activities.size();
+            for (int i = 1; i < activityCount; i++) {
+                final double higher = scores[getKey(activities.get(i - 1))];
+                final double lower = scores[getKey(activities.get(i))];
+                if (higher == 0 && lower == 0) {
+                    continue;
+                }
+                if (higher - lower <= SCORE_TOLERANCE * Math.abs(higher)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Default activity sorter implementation.
+     */
+    private final class DefaultSorter extends InternedKeySorter {
+
+        @Override
+        int getKeyCount() {
+            return mPackageIds.size();
+        }
+
+        @Override
+        int getKey(int componentId) {
+            return mComponentPackageIds[componentId];
+        }
     }
 
     /**
      * Within-app activity sorter implementation. This not only looks at package names for the chooser history, but also at the class names. This solves the problem that for intents internal to the app, always the same history would be shown basically. TODO: If multiple intents go to the same Activity, we still need to build a sorter for that.
      */
-    private final class WithinAppSorter implements ActivitySorter {
-        private static final float WEIGHT_DECAY_COEFFICIENT = 0.95f;
+    private final class WithinAppSorter extends InternedKeySorter {
 
-        private final Map<String, ActivityResolveInfo> mKeyToActivityMap =
-            new HashMap<String, ActivityResolveInfo>();
+        @Override
+        int getKeyCount() {
+            return mComponentIds.size();
+        }
+
+        @Override
+        int getKey(int componentId) {
+            return componentId;
+        }
+    }
+
+    /**
+     * Frecency activity sorter: every historical record of an activity adds
+     * its weight, halved for every half-life of wall-clock time between the
+     * record and the newest record. So activities chosen often and recently
+     * come first, and a burst of choices long ago fades out.
+     * <p>
+     * The scores are kept relative to a reference time instead of the current
+     * time, which scales all of them by the same factor and keeps the order.
+     * The reference time is a whole number of half-lives, so moving it scales
+     * the scores by an exact power of two.
+     * So an added or pruned record only changes the score of its own activity,
+     * which is updated in constant time before the activity is moved to its
+     * place. Powers of two are taken from a precomputed table. Activities are
+     * told apart by component, like the default sorter, and equal scores are
+     * ordered by component too.
+     * </p>
+     * <p>
+     * <strong>Note:</strong> The incremental state is kept per component id of
+     * one model, so an instance must not be shared by several models. Setting
+     * it on a second model throws.
+     * </p>
+     */
+    public static final class FrecencySorter implements IncrementalActivitySorter {
+
+        /**
+         * The default half-life of the weight of a record.
+         */
+        public static final long DEFAULT_HALF_LIFE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+        /**
+         * The number of bits of the fraction of a half-life count that are
+         * looked up in {@link #POWERS_OF_TWO}.
+         */
+        private static final int DECAY_TABLE_BITS = 10;
+
+        /**
+         * The size of {@link #POWERS_OF_TWO}.
+         */
+        private static final int DECAY_TABLE_SIZE = 1 << DECAY_TABLE_BITS;
+
+        /**
+         * <code>2^(i / DECAY_TABLE_SIZE)</code> for every index <code>i</code>.
+         */
+        private static final double[] POWERS_OF_TWO = new double[DECAY_TABLE_SIZE];
+
+        static {
+            for (int i = 0; i < DECAY_TABLE_SIZE; i++) {
+                POWERS_OF_TWO[i] = Math.pow(2, (double) i / DECAY_TABLE_SIZE);
+            }
+        }
+
+        /**
+         * The number of half-lives a record may be newer than the reference
+         * time before a full sort moves the reference, which keeps the
+         * weights within single precision.
+         */
+        private static final int MAX_HALF_LIVES = 64;
+
+        /**
+         * Relative difference of neighbouring scores below which the order is
+         * not trusted.
+         */
+        private static final double SCORE_TOLERANCE = 1e-4;
+
+        /**
+         * The half-life of the weight of a record.
+         */
+        private final long mHalfLifeMillis;
+
+        /**
+         * The time the scores are relative to, in whole half-lives.
+         */
+        private long mReferenceHalfLives;
+
+        /**
+         * Index of the activity per component id, -1 for none. Reused across sorts.
+         */
+        private int[] mKeyToActivityIndex = new int[0];
+
+        /**
+         * Running score per component id of the sorted activities.
+         */
+        private double[] mScores = new double[0];
+
+        /**
+         * The number of matching historical records per component id of the
+         * sorted activities, so a score without records is exactly zero.
+         */
+        private int[] mRecordCounts = new int[0];
+
+        /**
+         * The number of component ids of the sorted activities, all smaller.
+         */
+        private int mKeyCount;
+
+        /**
+         * Whether several sorted activities have the same component.
+         */
+        private boolean mHasDuplicateKeys;
+
+        /**
+         * The model whose component ids the state is kept for, if any.
+         * Guarded by this sorter.
+         */
+        private WeakReference<ActivityChooserModel> mModel;
+
+        /**
+         * Creates a new instance with the {@link #DEFAULT_HALF_LIFE_MILLIS}.
+         */
+        public FrecencySorter() {
+            this(DEFAULT_HALF_LIFE_MILLIS);
+        }
+
+        /**
+         * Creates a new instance.
+         *
+         * @param halfLifeMillis The time in which the weight of a record halves.
+         */
+        public FrecencySorter(long halfLifeMillis) {
+            if (halfLifeMillis <= 0) {
+                throw new IllegalArgumentException("Half-life must be positive: " + halfLifeMillis);
+            }
+            mHalfLifeMillis = halfLifeMillis;
+        }
+
+        /**
+         * Binds this sorter to the model it is set on.
+         *
+         * @param model The model.
+         * @throws IllegalStateException If it is set on another model.
+         */
+        synchronized void attach(ActivityChooserModel model) {
+            ActivityChooserModel attachedModel = (mModel != null) ? mModel.get() : null;
+            if (attachedModel != null && attachedModel != model) {
+                throw new IllegalStateException(
+                        "A FrecencySorter cannot be shared by several models.");
+            }
+            mModel = new WeakReference<ActivityChooserModel>(model);
+        }
+
+        /**
+         * Unbinds this sorter from a model it is no longer set on. Its next
+         * full sort starts the state over for whichever model it is set on.
+         *
+         * @param model The model.
+         */
+        synchronized void detach(ActivityChooserModel model) {
+            if (mModel != null && mModel.get() == model) {
+                mModel = null;
+            }
+        }
+
+        /**
+         * Gets the number of whole half-lives up to a time, rounded down.
+         *
+         * @param time The time.
+         * @return The half-lives.
+         */
+        private long getWholeHalfLives(long time) {
+            final long halfLives = time / mHalfLifeMillis;
+            return (time % mHalfLifeMillis < 0) ? halfLives - 1 : halfLives;
+        }
+
+        /**
+         * Gets <code>2^(time / half-life - reference half-lives)</code>.
+         *
+         * @param time The time of a record.
+         * @return The relative weight of the record.
+         */
+        private double getRecency(long time) {
+            final long wholeHalfLives = getWholeHalfLives(time);
+            final long remainder = time - wholeHalfLives * mHalfLifeMillis;
+            final int index = (int) (remainder * DECAY_TABLE_SIZE / mHalfLifeMillis);
+            final long exponent = wholeHalfLives - mReferenceHalfLives;
+            if (exponent < Integer.MIN_VALUE) {
+                return 0;
+            }
+            return Math.scalb(POWERS_OF_TWO[index], (int) exponent);
+        }
 
         public void sort(Intent intent, List<ActivityResolveInfo> activities,
                 List<HistoricalRecord> historicalRecords) {
-            Map<String, ActivityResolveInfo> keyToActivityMap =
-                mKeyToActivityMap;
-            keyToActivityMap.clear();
-
             final int activityCount = activities.size();
+            int keyCount = 0;
             for (int i = 0; i < activityCount; i++) {
-                ActivityResolveInfo activity = activities.get(i);
-                activity.weight = 0.0f;
-                String key = activity.resolveInfo.activityInfo.packageName + "_" + activity.resolveInfo.activityInfo.name;
-                keyToActivityMap.put(key, activity);
+                keyCount = Math.max(keyCount, activities.get(i).componentId + 1);
+            }
+            if (mKeyToActivityIndex.length < keyCount) {
+                final int capacity = Math.max(keyCount, 2 * mKeyToActivityIndex.length);
+                mKeyToActivityIndex = new int[capacity];
+                Arrays.fill(mKeyToActivityIndex, -1);
+                mScores = new double[capacity];
+                mRecordCounts = new int[capacity];
             }
+            mKeyCount = keyCount;
+            final int[] keyToActivityIndex = mKeyToActivityIndex;
+            final double[] scores = mScores;
+            mHasDuplicateKeys = false;
 
-            final int lastShareIndex = historicalRecords.size() - 1;
-            float nextRecordWeight = 1;
-            for (int i = lastShareIndex; i >= 0; i--) {
-                HistoricalRecord historicalRecord = historicalRecords.get(i);
-                String key = historicalRecord.activity.getPackageName() + "_" + historicalRecord.activity.getClassName();
-                ActivityResolveInfo activity = keyToActivityMap.get(key);
-                if (activity != null) {
-                    activity.weight += historicalRecord.weight * nextRecordWeight;
-                    nextRecordWeight = nextRecordWeight * WEIGHT_DECAY_COEFFICIENT;
+            for (int i = 0; i < activityCount; i++) {
+                final int key = activities.get(i).componentId;
+                mHasDuplicateKeys |= keyToActivityIndex[key] >= 0;
+                keyToActivityIndex[key] = i;
+                scores[key] = 0;
+                mRecordCounts[key] = 0;
+            }
+
+            // Go over the columns of the model's own history, not the records.
+            final HistoricalRecordBuffer buffer = (historicalRecords instanceof HistoricalRecordBuffer)
+                    ? (HistoricalRecordBuffer) historicalRecords : null;
+            final int recordCount = historicalRecords.size();
+            if (recordCount > 0) {
+                mReferenceHalfLives = getWholeHalfLives((buffer != null)
+                        ? buffer.getTime(recordCount - 1)
+                        : historicalRecords.get(recordCount - 1).time);
+            }
+            for (int i = 0; i < recordCount; i++) {
+                final int componentId;
+                final long time;
+                final float recordWeight;
+                if (buffer != null) {
+                    componentId = buffer.getComponentId(i);
+                    time = buffer.getTime(i);
+                    recordWeight = buffer.getWeight(i);
+                } else {
+                    HistoricalRecord historicalRecord = historicalRecords.get(i);
+                    componentId = historicalRecord.componentId;
+                    time = historicalRecord.time;
+                    recordWeight = historicalRecord.weight;
                 }
+                if (componentId < 0 || componentId >= keyCount
+                        || keyToActivityIndex[componentId] < 0) {
+                    continue;
+                }
+                scores[componentId] += recordWeight * getRecency(time);
+                mRecordCounts[componentId]++;
             }
 
-            Collections.sort(activities);
+            for (int i = 0; i < activityCount; i++) {
+                ActivityResolveInfo activity = activities.get(i);
+                activity.weight = (float) scores[activity.componentId];
+            }
+            for (int i = 0; i < activityCount; i++) {
+                keyToActivityIndex[activities.get(i).componentId] = -1;
+            }
+
+            // Stable insertion sort, the list is short and mostly sorted.
+            for (int i = 1; i < activityCount; i++) {
+                ActivityResolveInfo activity = activities.get(i);
+                int j = i - 1;
+                while (j >= 0 && compare(activities.get(j), activity) > 0) {
+                    activities.set(j + 1, activities.get(j));
+                    j--;
+                }
+                activities.set(j + 1, activity);
+            }
 
             if (DEBUG) {
                 for (int i = 0; i < activityCount; i++) {
@@ -1078,12 +2642,210 @@ import android.util.Xml;
                 }
             }
         }
+
+        public boolean onHistoricalRecordAdded(Intent intent, List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord) {
+            final int activityIndex = findActivityIndex(activities, historicalRecord);
+            if (activityIndex < 0) {
+                // Not matching any activity, so the weights do not change.
+                return !mHasDuplicateKeys;
+            }
+            if (mHasDuplicateKeys) {
+                return false;
+            }
+            if (getWholeHalfLives(historicalRecord.time) - mReferenceHalfLives > MAX_HALF_LIVES) {
+                // Have a full sort move the reference time.
+                return false;
+            }
+            ActivityResolveInfo activity = activities.get(activityIndex);
+            final int key = activity.componentId;
+            mScores[key] += historicalRecord.weight * getRecency(historicalRecord.time);
+            mRecordCounts[key]++;
+            activity.weight = (float) mScores[key];
+
+            // The weight only grew, move the activity up before lower weights.
+            int i = activityIndex;
+            while (i > 0 && compare(activities.get(i - 1), activity) > 0) {
+                activities.set(i, activities.get(i - 1));
+                i--;
+            }
+            activities.set(i, activity);
+            return isOrderCertain(activities);
+        }
+
+        public boolean onHistoricalRecordPruned(Intent intent, List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord) {
+            final int activityIndex = findActivityIndex(activities, historicalRecord);
+            if (activityIndex < 0) {
+                return !mHasDuplicateKeys;
+            }
+            if (mHasDuplicateKeys) {
+                return false;
+            }
+            ActivityResolveInfo activity = activities.get(activityIndex);
+            final int key = activity.componentId;
+            mScores[key] -= historicalRecord.weight * getRecency(historicalRecord.time);
+            if (--mRecordCounts[key] == 0) {
+                // Do not leave a rounding error behind.
+                mScores[key] = 0;
+            }
+            activity.weight = (float) mScores[key];
+
+            // The weight only shrank, move the activity down after higher weights.
+            final int activityCount = activities.size();
+            int i = activityIndex;
+            while (i < activityCount - 1 && compare(activity, activities.get(i + 1)) > 0) {
+                activities.set(i, activities.get(i + 1));
+                i++;
+            }
+            activities.set(i, activity);
+            return isOrderCertain(activities);
+        }
+
+        /**
+         * Compares activities in descending order of weight, and of component
+         * id for equal weights. Unlike the default sorters, equal weights do
+         * not keep their previous order, which the updates for a single
+         * record cannot always reproduce.
+         *
+         * @param activity The first activity.
+         * @param another The second activity.
+         * @return Negative if the first activity comes first, positive if last.
+         */
+        private static int compare(ActivityResolveInfo activity, ActivityResolveInfo another) {
+            final int result = activity.compareTo(another);
+            return (result != 0) ? result : activity.componentId - another.componentId;
+        }
+
+        /**
+         * Finds the activity a historical record is weighed for.
+         *
+         * @param activities The sorted activities.
+         * @param historicalRecord The record.
+         * @return The index of the activity, or -1 if none.
+         */
+        private int findActivityIndex(List<ActivityResolveInfo> activities,
+                HistoricalRecord historicalRecord) {
+            final int key = historicalRecord.componentId;
+            if (key < 0 || key >= mKeyCount) {
+                return -1;
+            }
+            final int activityCount = activities.size();
+            for (int i = 0; i < activityCount; i++) {
+                if (activities.get(i).componentId == key) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Checks that the running scores of neighbouring activities are far
+         * enough apart, or exactly zero, for the full sort to order them the
+         * same despite rounding.
+         *
+         * @param activities The sorted activities.
+         * @return Whether the order is certain.
+         */
+        private boolean isOrderCertain(List<ActivityResolveInfo> activities) {
+            final double[] scores = mScores;
+            final int activityCount = activities.size();
+            for (int i = 1; i < activityCount; i++) {
+                final double higher = scores[activities.get(i - 1).componentId];
+                final double lower = scores[activities.get(i).componentId];
+                if (higher == 0 && lower == 0) {
+                    continue;
+                }
+                if (higher - lower <= SCORE_TOLERANCE * Math.abs(higher)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Secondary intent provider for Collectionista: on devices with an
+     * autofocus camera, activities that scan to add are offered too. The
+     * camera features are probed only once per process.
+     */
+    public static final class ScanAddSecondaryIntentProvider implements SecondaryIntentProvider {
+
+        /**
+         * Whether the device has an autofocus camera, <code>null</code> if not probed yet.
+         */
+        private static volatile Boolean sHasAutofocusCamera;
+
+        @Override
+        public Intent getSecondaryIntent(Context context, Intent intent) {
+            Boolean hasAutofocusCamera = sHasAutofocusCamera;
+            if (hasAutofocusCamera == null) {
+                //BUGSOLVED #801777 //TODO: later add a textual input for a query so this switch can happen a bit later.
+                PackageManager pm = context.getPackageManager();
+                hasAutofocusCamera = pm.hasSystemFeature(PackageManager.FEATURE_CAMERA)
+                        && pm.hasSystemFeature(PackageManager.FEATURE_CAMERA_AUTOFOCUS);
+                sHasAutofocusCamera = hasAutofocusCamera;
+            }
+            if (!hasAutofocusCamera) {
+                return null;
+            }
+            Intent secondaryIntent = new Intent(intent);
+            secondaryIntent.addCategory(COLLECTIONISTA_CATEGORY_SCAN_ADD);//TODO: ActionBarPoirot
+            return secondaryIntent;
+        }
+    }
+
+    /**
+     * Command for reading the last known ranking and the historical records
+     * from their files on the persistence thread. The ranking is applied and
+     * the read records are merged right away on that thread, before any write
+     * scheduled meanwhile runs, and clients are notified.
+     */
+    private final class ReadHistoryRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            // The small ranking file first, to order the activities meanwhile.
+            RankingSnapshotFile.Ranking ranking = mRankingFile.read();
+            synchronized (mInstanceLock) {
+                onRankingRead(ranking);
+            }
+            List<HistoricalRecord> readRecords = null;
+            int loggedRecordCount = 0;
+            boolean needsRewrite = false;
+            try {
+                readRecords = mHistoryLog.read();
+                loggedRecordCount = mHistoryLog.getRecordCount();
+                // A damaged tail only lost its bad entries, the rest is kept.
+                needsRewrite = mHistoryLog.needsRewrite();
+            } catch (IOException ioe) {
+                Log.e(LOG_TAG, "Error reading historical records log: "
+                        + mHistoryLog.getFileName(), ioe);
+                needsRewrite = true;
+            }
+            if (readRecords == null) {
+                readRecords = readLegacyHistoricalData();
+                if (readRecords != null) {
+                    // Migrate: the log is written and the XML file dropped on merge.
+                    needsRewrite = true;
+                } else {
+                    readRecords = new ArrayList<HistoricalRecord>();
+                }
+            }
+            synchronized (mInstanceLock) {
+                onHistoricalDataRead(readRecords, loggedRecordCount, needsRewrite);
+                onStateChanged();
+            }
+        }
     }
 
     /**
-     * Command for reading the historical records from a file off the UI thread.
+     * Reads the historical records from a legacy XML history file, as written
+     * by earlier versions of this class.
+     *
+     * @return The records, or <code>null</code> if there is no such file.
      */
-    private void readHistoricalDataImpl() {
+    private List<HistoricalRecord> readLegacyHistoricalData() {
         FileInputStream fis = null;
         try {
             fis = mContext.openFileInput(mHistoryFileName);
@@ -1091,8 +2853,9 @@ import android.util.Xml;
             if (DEBUG) {
                 Log.i(LOG_TAG, "Could not open historical records file: " + mHistoryFileName);
             }
-            return;
+            return null;
         }
+        List<HistoricalRecord> historicalRecords = new ArrayList<HistoricalRecord>();
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setInput(fis, null);
@@ -1107,9 +2870,6 @@ import android.util.Xml;
                         + TAG_HISTORICAL_RECORDS + " tag.");
             }
 
-            List<HistoricalRecord> historicalRecords = mHistoricalRecords;
-            historicalRecords.clear();
-
             while (true) {
                 type = parser.next();
                 if (type == XmlPullParser.END_DOCUMENT) {
@@ -1152,83 +2912,196 @@ import android.util.Xml;
                 }
             }
         }
+        return historicalRecords;
     }
 
     /**
-     * Command for persisting the historical records to a file off the UI thread.
+     * Immutable state published to readers: the activities that can handle
+     * the intent in their order, and the history size.
+     *
+     * @see ActivityChooserModel#getSnapshot()
      */
-    private final class PersistHistoryAsyncTask extends AsyncTask<Object, Void, Void> {
+    public static final class Snapshot {
 
-        @Override
-        @SuppressWarnings("unchecked")
-        public Void doInBackground(Object... args) {
-            List<HistoricalRecord> historicalRecords = (List<HistoricalRecord>) args[0];
-            String hostoryFileName = (String) args[1];
+        /**
+         * The version, incremented with every published snapshot.
+         */
+        final int version;
 
-            FileOutputStream fos = null;
+        /**
+         * The sorted activities.
+         */
+        final ResolveInfo[] activities;
 
-            try {
-                fos = mContext.openFileOutput(hostoryFileName, Context.MODE_PRIVATE);
-            } catch (FileNotFoundException fnfe) {
-                Log.e(LOG_TAG, "Error writing historical recrod file: " + hostoryFileName, fnfe);
-                return null;
-            }
+        /**
+         * The stable ids of the sorted activities.
+         */
+        final long[] activityIds;
 
-            XmlSerializer serializer = Xml.newSerializer();
+        /**
+         * The number of historical records.
+         */
+        final int historySize;
 
-            try {
-                serializer.setOutput(fos, null);
-                serializer.startDocument("UTF-8", true);
-                serializer.startTag(null, TAG_HISTORICAL_RECORDS);
-
-                final int recordCount = historicalRecords.size();
-                for (int i = 0; i < recordCount; i++) {
-                    HistoricalRecord record = historicalRecords.remove(0);
-                    serializer.startTag(null, TAG_HISTORICAL_RECORD);
-                    serializer.attribute(null, ATTRIBUTE_ACTIVITY,
-                            record.activity.flattenToString());
-                    serializer.attribute(null, ATTRIBUTE_TIME, String.valueOf(record.time));
-                    serializer.attribute(null, ATTRIBUTE_WEIGHT, String.valueOf(record.weight));
-                    serializer.endTag(null, TAG_HISTORICAL_RECORD);
-                    if (DEBUG) {
-                        Log.i(LOG_TAG, "Wrote " + record.toString());
-                    }
-                }
+        /**
+         * Creates a new instance.
+         *
+         * @param version The version.
+         * @param activities The sorted activities.
+         * @param activityIds The stable ids of the sorted activities.
+         * @param historySize The number of historical records.
+         */
+        Snapshot(int version, ResolveInfo[] activities, long[] activityIds, int historySize) {
+            this.version = version;
+            this.activities = activities;
+            this.activityIds = activityIds;
+            this.historySize = historySize;
+        }
 
-                serializer.endTag(null, TAG_HISTORICAL_RECORDS);
-                serializer.endDocument();
+        /**
+         * Gets the version, which changes whenever the activities, their
+         * order or the history size change.
+         *
+         * @return The version.
+         */
+        public int getVersion() {
+            return version;
+        }
 
-                if (DEBUG) {
-                    Log.i(LOG_TAG, "Wrote " + recordCount + " historical records.");
-                }
-            } catch (IllegalArgumentException iae) {
-                Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, iae);
-            } catch (IllegalStateException ise) {
-                Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, ise);
-            } catch (IOException ioe) {
-                Log.e(LOG_TAG, "Error writing historical recrod file: " + mHistoryFileName, ioe);
-            } finally {
-                mCanReadHistoricalData = true;
-                if (fos != null) {
-                    try {
-                        fos.close();
-                    } catch (IOException e) {
-                        /* ignore */
-                    }
+        /**
+         * Gets the number of activities.
+         *
+         * @return The activity count.
+         */
+        public int getActivityCount() {
+            return activities.length;
+        }
+
+        /**
+         * Gets an activity at a given index.
+         *
+         * @param index The index.
+         * @return The activity.
+         */
+        public ResolveInfo getActivity(int index) {
+            return activities[index];
+        }
+
+        /**
+         * Gets an id of the activity at a given index that stays the same
+         * while the activity is available, also when the order changes.
+         *
+         * @param index The index.
+         * @return The id.
+         */
+        public long getActivityId(int index) {
+            return activityIds[index];
+        }
+
+        /**
+         * Gets the index of a the given activity.
+         *
+         * @param activity The activity.
+         * @return The index if found, -1 otherwise.
+         */
+        public int getActivityIndex(ResolveInfo activity) {
+            final int activityCount = activities.length;
+            for (int i = 0; i < activityCount; i++) {
+                if (activities[i] == activity) {
+                    return i;
                 }
             }
-            return null;
+            return INVALID_INDEX;
+        }
+
+        /**
+         * Gets the default activity, the first one.
+         *
+         * @return The default activity, <code>null</code> if no activities.
+         */
+        public ResolveInfo getDefaultActivity() {
+            return (activities.length > 0) ? activities[0] : null;
+        }
+
+        /**
+         * Gets the number of historical records.
+         *
+         * @return The history size.
+         */
+        public int getHistorySize() {
+            return historySize;
+        }
+    }
+
+    /**
+     * Activities resolved for an intent signature.
+     */
+    private static final class ResolvedActivities {
+
+        /**
+         * The activities handling the intent itself.
+         */
+        final List<ResolveInfo> primary;
+
+        /**
+         * The activities handling the secondary intent.
+         */
+        final List<ResolveInfo> secondary;
+
+        /**
+         * The packages of all resolved activities.
+         */
+        final Set<String> packageNames = new HashSet<String>();
+
+        /**
+         * Creates a new instance.
+         *
+         * @param primary The activities handling the intent itself.
+         * @param secondary The activities handling the secondary intent.
+         */
+        ResolvedActivities(List<ResolveInfo> primary, List<ResolveInfo> secondary) {
+            this.primary = primary;
+            this.secondary = secondary;
+            for (ResolveInfo resolveInfo : primary) {
+                packageNames.add(resolveInfo.activityInfo.packageName);
+            }
+            for (ResolveInfo resolveInfo : secondary) {
+                packageNames.add(resolveInfo.activityInfo.packageName);
+            }
         }
     }
 
     /**
      * Keeps in sync the historical records and activities with the installed applications.
      */
-    private final class DataModelPackageMonitor extends PackageMonitor {
+    private static final class DataModelPackageClient implements PackageChangeDispatcher.Client {
+
+        /**
+         * The model, weakly referenced so the dispatcher does not keep it.
+         */
+        private final WeakReference<ActivityChooserModel> mDataModel;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param dataModel The model.
+         */
+        DataModelPackageClient(ActivityChooserModel dataModel) {
+            mDataModel = new WeakReference<ActivityChooserModel>(dataModel);
+        }
 
         @Override
-        public void onSomePackagesChanged() {
-            mReloadActivities = true;
+        public void onPackagesChanged(Set<String> changedPackages, boolean packagesAdded) {
+            ActivityChooserModel dataModel = mDataModel.get();
+            if (dataModel == null) {
+                return;
+            }
+            synchronized (dataModel.mInstanceLock) {
+                dataModel.invalidateResolutionCache(changedPackages, packagesAdded);
+                dataModel.mReloadActivities = true;
+                // Reload here, off the UI thread, readers keep the old snapshot meanwhile.
+                dataModel.ensureConsistentState();
+            }
         }
     }
 }
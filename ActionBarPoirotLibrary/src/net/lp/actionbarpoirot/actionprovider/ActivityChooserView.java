@@ -35,20 +35,24 @@
 
 package net.lp.actionbarpoirot.actionprovider;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+
 import net.lp.actionbarpoirot.R;
 import net.lp.actionbarpoirot.actionprovider.ActivityChooserModel.ActivityChooserModelClient;
+import net.lp.actionbarpoirot.actionprovider.ActivityChooserModel.Snapshot;
 import net.lp.actionbarpoirot.util.UiUtilities;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.database.DataSetObserver;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
@@ -56,6 +60,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.view.ViewTreeObserver;
 import android.view.ViewTreeObserver.OnGlobalLayoutListener;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.FrameLayout;
@@ -156,11 +161,16 @@ import android.widget.TextView;
         @Override
         public void onChanged() {
             super.onChanged();
+            mAdapter.updateSnapshot();
+            // Row widths are kept per activity, a new order or choice does not change them.
             mAdapter.notifyDataSetChanged();
+            mAdapter.prefetch();
         }
         @Override
         public void onInvalidated() {
             super.onInvalidated();
+            mAdapter.updateSnapshot();
+            mAdapter.invalidateMeasurements();
             mAdapter.notifyDataSetInvalidated();
         }
     };
@@ -221,6 +231,16 @@ import android.widget.TextView;
      */
     private final Activity mActivity;
 
+    /**
+     * Cache of the labels and icons of the activities.
+     */
+    private final ActivityLabelIconCache mLabelIconCache;
+
+    /**
+     * The running load of the label and icon of the default activity, if any.
+     */
+    private DefaultActivityLoadTask mDefaultActivityLoadTask;
+
     /**
      * Create a new instance.
      *
@@ -251,6 +271,7 @@ import android.widget.TextView;
         super(themedContext, attrs, defStyle);
         mActivity = context;
     	mContext = themedContext;
+        mLabelIconCache = ActivityLabelIconCache.getInstance(themedContext);
 
         TypedArray attributesArray = context.obtainStyledAttributes(attrs,
                 R.styleable.ActivityChooserView, defStyle, 0);
@@ -381,6 +402,7 @@ import android.widget.TextView;
         }
 
         getViewTreeObserver().addOnGlobalLayoutListener(mOnGlobalLayoutListener);
+        updateSnapshotIfNeeded();
 
         final boolean defaultActivityButtonShown =
             mDefaultActivityButton.getVisibility() == VISIBLE;
@@ -406,6 +428,7 @@ import android.widget.TextView;
             final int contentWidth = Math.min(mAdapter.measureContentWidth(), mListPopupMaxWidth);
             popupWindow.setContentWidth(contentWidth);
             popupWindow.show();
+            popupWindow.getListView().setRecyclerListener(mCallbacks);
             if (mProvider != null) {
                 mProvider.subUiVisibilityChanged(true);
             }
@@ -451,9 +474,21 @@ import android.widget.TextView;
         if (dataModel != null) {
             dataModel.registerObserver(mModelDataSetOberver);
         }
+        updateSnapshotIfNeeded();
         mIsAttachedToWindow = true;
     }
 
+    /**
+     * Catches up with changes of the data model that the observer did not
+     * see, e.g. while detached.
+     */
+    private void updateSnapshotIfNeeded() {
+        ActivityChooserModel dataModel = mAdapter.getDataModel();
+        if (dataModel != null && mAdapter.getSnapshot() != dataModel.getSnapshot()) {
+            mModelDataSetOberver.onChanged();
+        }
+    }
+
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN) @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
@@ -472,6 +507,7 @@ import android.widget.TextView;
         if (isShowingPopup()) {
             dismissPopup();
         }
+        cancelDefaultActivityLoad();
         mIsAttachedToWindow = false;
     }
 
@@ -569,19 +605,21 @@ import android.widget.TextView;
         if (activityCount==1 || activityCount > 1 && historySize > 0) {
             mDefaultActivityButton.setVisibility(VISIBLE);
             ResolveInfo activity = mAdapter.getDefaultActivity();
-            PackageManager packageManager = mContext.getPackageManager();
-            
+
             //Collectionista
             // Set the icon, but not the logo (activity icon), but the intent filter icon
-            mDefaultActivityButtonImage.setImageResource(activity.getIconResource());
-            //mDefaultActivityButtonImage.setImageDrawable(activity.loadIcon(packageManager));
-            if (mDefaultActionButtonContentDescription != 0) {
-                CharSequence label = activity.loadLabel(packageManager);
-                String contentDescription = mContext.getString(
-                        mDefaultActionButtonContentDescription, label);
-                mDefaultActivityButton.setContentDescription(contentDescription);
+            // Only from the cache, what is missing is loaded in the background.
+            Drawable icon = mLabelIconCache.peekIcon(activity);
+            CharSequence label = (mDefaultActionButtonContentDescription != 0)
+                    ? mLabelIconCache.peekLabel(activity) : null;
+            if (icon == null || (mDefaultActionButtonContentDescription != 0 && label == null)) {
+                loadDefaultActivity(activity);
+            } else {
+                cancelDefaultActivityLoad();
             }
+            setDefaultActivityAppearance(icon, label);
         } else {
+            cancelDefaultActivityLoad();
             mDefaultActivityButton.setVisibility(View.GONE);
         }
         // Activity chooser content.
@@ -592,6 +630,47 @@ import android.widget.TextView;
         }
     }
 
+    /**
+     * Sets the icon and the content description of the default activity button.
+     *
+     * @param icon The icon, <code>null</code> for none yet.
+     * @param label The label for the content description, <code>null</code>
+     *        to leave it.
+     */
+    private void setDefaultActivityAppearance(Drawable icon, CharSequence label) {
+        mDefaultActivityButtonImage.setImageDrawable(icon);
+        if (mDefaultActionButtonContentDescription != 0 && label != null) {
+            String contentDescription = mContext.getString(
+                    mDefaultActionButtonContentDescription, label);
+            mDefaultActivityButton.setContentDescription(contentDescription);
+        }
+    }
+
+    /**
+     * Loads the label and icon of the default activity in the background,
+     * unless they are being loaded already.
+     *
+     * @param activity The default activity.
+     */
+    private void loadDefaultActivity(ResolveInfo activity) {
+        if (mDefaultActivityLoadTask != null && mDefaultActivityLoadTask.mActivity == activity) {
+            return;
+        }
+        cancelDefaultActivityLoad();
+        mDefaultActivityLoadTask = new DefaultActivityLoadTask(activity);
+        mDefaultActivityLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    /**
+     * Cancels the load of the label and icon of the default activity, if any.
+     */
+    private void cancelDefaultActivityLoad() {
+        if (mDefaultActivityLoadTask != null) {
+            mDefaultActivityLoadTask.cancel(false);
+            mDefaultActivityLoadTask = null;
+        }
+    }
+
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         super.onConfigurationChanged(newConfig);
@@ -599,13 +678,18 @@ import android.widget.TextView;
         mAllowTextWithIcon = getContext().getResources().getBoolean(
                 R.bool.config_allowActionMenuItemTextWithIcon);
         updateMainLabelVisibility();
+
+        // Rows may measure differently, e.g. with another font scale.
+        mAdapter.invalidateMeasurements();
+        mAdapter.prefetch();
     }
 
     /**
      * Interface implementation to avoid publishing them in the APIs.
      */
     private class Callbacks implements AdapterView.OnItemClickListener,
-            View.OnClickListener, View.OnLongClickListener, PopupWindow.OnDismissListener {
+            View.OnClickListener, View.OnLongClickListener, PopupWindow.OnDismissListener,
+            AbsListView.RecyclerListener {
 
         // AdapterView#OnItemClickListener
         public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
@@ -620,13 +704,15 @@ import android.widget.TextView;
                     if (mIsSelectingDefaultActivity) {
                         // The item at position zero is the default already.
                         if (position > 0) {
-                            mAdapter.getDataModel().setDefaultActivity(position);
+                            mAdapter.getDataModel().setDefaultActivity(mAdapter.getSnapshot(),
+                                    position);
                         }
                     } else {
                         // If the default target is not shown in the list, the first
                         // item in the model is default action => adjust index
                         position = mAdapter.getShowDefaultActivity() ? position : position + 1;
-                        Intent launchIntent = mAdapter.getDataModel().chooseActivity(position);
+                        Intent launchIntent = mAdapter.getDataModel().chooseActivity(
+                                mAdapter.getSnapshot(), position);
                         if (launchIntent != null) {
                             launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
                             mActivity.startActivity(launchIntent);
@@ -642,9 +728,11 @@ import android.widget.TextView;
         public void onClick(View view) {
             if (view == mDefaultActivityButton) {
                 dismissPopup();
-                ResolveInfo defaultActivity = mAdapter.getDefaultActivity();
-                final int index = mAdapter.getDataModel().getActivityIndex(defaultActivity);
-                Intent launchIntent = mAdapter.getDataModel().chooseActivity(index);
+                // The default is the first activity of the shown snapshot.
+                final Snapshot snapshot = mAdapter.getSnapshot();
+                final int index = snapshot.getActivityIndex(snapshot.getDefaultActivity());
+                Intent launchIntent = (index >= 0)
+                        ? mAdapter.getDataModel().chooseActivity(snapshot, index) : null;
                 if (launchIntent != null) {
                     launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
                     mActivity.startActivity(launchIntent);
@@ -679,6 +767,11 @@ import android.widget.TextView;
             }
         }
 
+        // AbsListView.RecyclerListener#onMovedToScrapHeap
+        public void onMovedToScrapHeap(View view) {
+            mAdapter.onViewRecycled(view);
+        }
+
         private void notifyOnDismissListener() {
             if (mOnDismissListener != null) {
                 mOnDismissListener.onDismiss();
@@ -701,8 +794,16 @@ import android.widget.TextView;
 
         private static final int ITEM_VIEW_TYPE_COUNT = 3;
 
+        private static final long FOOTER_ITEM_ID = -1;
+
         private ActivityChooserModel mDataModel;
 
+        /**
+         * The snapshot of the data model that is shown, updated when the
+         * data model notifies a change.
+         */
+        private Snapshot mSnapshot;
+
         private int mMaxActivityCount = MAX_ACTIVITY_COUNT_DEFAULT;
 
         private boolean mShowDefaultActivity;
@@ -711,6 +812,57 @@ import android.widget.TextView;
 
         private boolean mShowFooterView;
 
+        /**
+         * The running prefetch, if any.
+         */
+        private PrefetchTask mPrefetchTask;
+
+        /**
+         * The measured width of the row per activity, if prefetched. Kept
+         * across changes of the order, so only new activities are measured.
+         */
+        private Map<ResolveInfo, Integer> mRowWidths;
+
+        /**
+         * The measured width of the footer row, or -1 if not prefetched.
+         */
+        private int mFooterWidth = -1;
+
+        /**
+         * The data model the row widths were measured for.
+         */
+        private ActivityChooserModel mRowWidthsDataModel;
+
+        /**
+         * The memoized content width, or -1 if not measured.
+         */
+        private int mContentWidth = -1;
+
+        /**
+         * The data model the content width was measured for.
+         */
+        private ActivityChooserModel mContentWidthDataModel;
+
+        /**
+         * The snapshot version of the data model the content width was measured for.
+         */
+        private int mContentWidthVersion;
+
+        /**
+         * The font scale the content width was measured with.
+         */
+        private float mContentWidthFontScale;
+
+        /**
+         * Whether the default activity was shown when measuring the content width.
+         */
+        private boolean mContentWidthShowDefaultActivity;
+
+        /**
+         * Whether the footer was shown when measuring the content width.
+         */
+        private boolean mContentWidthShowFooterView;
+
         public void setDataModel(ActivityChooserModel dataModel) {
             ActivityChooserModel oldDataModel = mAdapter.getDataModel();
             if (oldDataModel != null && isShown()) {
@@ -720,7 +872,105 @@ import android.widget.TextView;
             if (dataModel != null && isShown()) {
                 dataModel.registerObserver(mModelDataSetOberver);
             }
+            updateSnapshot();
             notifyDataSetChanged();
+            prefetch();
+        }
+
+        /**
+         * Takes the current snapshot of the data model, for showing and
+         * choosing the activities consistently until the next change.
+         */
+        public void updateSnapshot() {
+            mSnapshot = (mDataModel != null) ? mDataModel.getSnapshot() : null;
+        }
+
+        public Snapshot getSnapshot() {
+            return mSnapshot;
+        }
+
+        /**
+         * Starts loading the labels and icons of the activities of the data
+         * model in the background, after which the row widths are measured.
+         * A running prefetch for older data is cancelled.
+         */
+        public void prefetch() {
+            if (mPrefetchTask != null) {
+                mPrefetchTask.cancel(false);
+                mPrefetchTask = null;
+            }
+            if (mDataModel == null) {
+                return;
+            }
+            if (hasRowWidths()) {
+                // Only the order or the history changed.
+                return;
+            }
+            mPrefetchTask = new PrefetchTask(mDataModel, mSnapshot);
+            mPrefetchTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        /**
+         * Whether the row of every activity of the snapshot has been measured.
+         *
+         * @return Whether all row widths are known.
+         */
+        private boolean hasRowWidths() {
+            if (mRowWidths == null || mRowWidthsDataModel != mDataModel || mFooterWidth < 0) {
+                return false;
+            }
+            final int activityCount = mSnapshot.getActivityCount();
+            for (int i = 0; i < activityCount; i++) {
+                if (!mRowWidths.containsKey(mSnapshot.getActivity(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Stores the row widths measured after a prefetch. Only the rows of
+         * activities that were not measured yet are measured.
+         *
+         * @param task The prefetch that finished.
+         */
+        void onPrefetched(PrefetchTask task) {
+            if (task != mPrefetchTask) {
+                return;
+            }
+            mPrefetchTask = null;
+            if (task.mDataModel != mDataModel || task.mSnapshot != mSnapshot) {
+                // Changed meanwhile, the observer started a new prefetch.
+                return;
+            }
+            final int widthMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+            final int heightMeasureSpec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+            final Snapshot snapshot = task.mSnapshot;
+            final int activityCount = snapshot.getActivityCount();
+            final Map<ResolveInfo, Integer> oldRowWidths =
+                (mRowWidthsDataModel == mDataModel) ? mRowWidths : null;
+            // Only the current activities, so removed ones are forgotten.
+            Map<ResolveInfo, Integer> rowWidths =
+                new IdentityHashMap<ResolveInfo, Integer>(activityCount);
+            View itemView = null;
+            for (int i = 0; i < activityCount; i++) {
+                final ResolveInfo activity = snapshot.getActivity(i);
+                Integer rowWidth = (oldRowWidths != null) ? oldRowWidths.get(activity) : null;
+                if (rowWidth == null) {
+                    // The icon has a fixed size, so it is not needed for measuring.
+                    itemView = bindActivityView(activity, false, false, itemView, null);
+                    itemView.measure(widthMeasureSpec, heightMeasureSpec);
+                    rowWidth = itemView.getMeasuredWidth();
+                }
+                rowWidths.put(activity, rowWidth);
+            }
+            if (mFooterWidth < 0 || oldRowWidths == null) {
+                View footerView = bindFooterView(null, null);
+                footerView.measure(widthMeasureSpec, heightMeasureSpec);
+                mFooterWidth = footerView.getMeasuredWidth();
+            }
+            mRowWidths = rowWidths;
+            mRowWidthsDataModel = task.mDataModel;
         }
 
         @Override
@@ -739,8 +989,8 @@ import android.widget.TextView;
 
         public int getCount() {
             int count = 0;
-            int activityCount = mDataModel.getActivityCount();
-            if (!mShowDefaultActivity && mDataModel.getDefaultActivity() != null) {
+            int activityCount = mSnapshot.getActivityCount();
+            if (!mShowDefaultActivity && mSnapshot.getDefaultActivity() != null) {
                 activityCount--;
             }
             count = Math.min(activityCount, mMaxActivityCount);
@@ -756,60 +1006,179 @@ import android.widget.TextView;
                 case ITEM_VIEW_TYPE_FOOTER:
                     return null;
                 case ITEM_VIEW_TYPE_ACTIVITY:
-                    if (!mShowDefaultActivity && mDataModel.getDefaultActivity() != null) {
+                    if (!mShowDefaultActivity && mSnapshot.getDefaultActivity() != null) {
                         position++;
                     }
-                    return mDataModel.getActivity(position);
+                    return mSnapshot.getActivity(position);
                 default:
                     throw new IllegalArgumentException();
             }
         }
 
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
         public long getItemId(int position) {
-            return position;
+            final int itemViewType = getItemViewType(position);
+            switch (itemViewType) {
+                case ITEM_VIEW_TYPE_FOOTER:
+                    return FOOTER_ITEM_ID;
+                case ITEM_VIEW_TYPE_ACTIVITY:
+                    if (!mShowDefaultActivity && mSnapshot.getDefaultActivity() != null) {
+                        position++;
+                    }
+                    return mSnapshot.getActivityId(position);
+                default:
+                    throw new IllegalArgumentException();
+            }
         }
 
         public View getView(int position, View convertView, ViewGroup parent) {
             final int itemViewType = getItemViewType(position);
             switch (itemViewType) {
                 case ITEM_VIEW_TYPE_FOOTER:
-                    if (convertView == null || convertView.getId() != ITEM_VIEW_TYPE_FOOTER) {
-                        convertView = LayoutInflater.from(getContext()).inflate(
-                                R.layout.activity_chooser_view_list_item, parent, false);
-                        convertView.setId(ITEM_VIEW_TYPE_FOOTER);
-                        TextView titleView = (TextView) convertView.findViewById(R.id.title);
-                        titleView.setText(mContext.getString(
-                                R.string.activity_chooser_view_see_all));
-                    }
-                    return convertView;
+                    return bindFooterView(convertView, parent);
                 case ITEM_VIEW_TYPE_ACTIVITY:
-                    if (convertView == null || convertView.getId() != R.id.list_item) {
-                        convertView = LayoutInflater.from(getContext()).inflate(
-                                R.layout.activity_chooser_view_list_item, parent, false);
-                    }
-                    PackageManager packageManager = mContext.getPackageManager();
-
-                    // Set the icon, but not the logo (activity icon), but the intent filter icon
-                    ImageView iconView = (ImageView) convertView.findViewById(R.id.icon);
-                    ResolveInfo activity = (ResolveInfo) getItem(position);
-                    iconView.setImageResource(activity.getIconResource());
-                    //iconView.setImageDrawable(activity.loadIcon(packageManager));
-                    // Set the title.
-                    TextView titleView = (TextView) convertView.findViewById(R.id.title);
-                    titleView.setText(activity.loadLabel(packageManager));
                     // Highlight the default.
-                    if (mShowDefaultActivity && position == 0 && mHighlightDefaultActivity) {
-                        convertView.setActivated(true);
-                    } else {
-                        convertView.setActivated(false);
-                    }
-                    return convertView;
+                    final boolean activated = mShowDefaultActivity && position == 0
+                            && mHighlightDefaultActivity;
+                    return bindActivityView((ResolveInfo) getItem(position), activated, true,
+                            convertView, parent);
                 default:
                     throw new IllegalArgumentException();
             }
         }
 
+        /**
+         * Gets the footer row view.
+         *
+         * @param convertView The view to reuse, if possible.
+         * @param parent The parent to inflate for, or <code>null</code>.
+         * @return The footer view.
+         */
+        private View bindFooterView(View convertView, ViewGroup parent) {
+            RowViewHolder holder = (convertView != null)
+                    ? (RowViewHolder) convertView.getTag() : null;
+            if (holder == null || holder.itemViewType != ITEM_VIEW_TYPE_FOOTER) {
+                convertView = LayoutInflater.from(getContext()).inflate(
+                        R.layout.activity_chooser_view_list_item, parent, false);
+                holder = new RowViewHolder(ITEM_VIEW_TYPE_FOOTER, convertView);
+                convertView.setTag(holder);
+                holder.title.setText(mContext.getString(
+                        R.string.activity_chooser_view_see_all));
+            }
+            return convertView;
+        }
+
+        /**
+         * Binds an activity row view. An icon that is not cached yet is
+         * loaded in the background, replacing any pending load for the view.
+         *
+         * @param activity The activity.
+         * @param activated Whether the row is highlighted.
+         * @param showIcon Whether to set the icon.
+         * @param convertView The view to reuse, if possible.
+         * @param parent The parent to inflate for, or <code>null</code>.
+         * @return The activity view.
+         */
+        private View bindActivityView(ResolveInfo activity, boolean activated, boolean showIcon,
+                View convertView, ViewGroup parent) {
+            RowViewHolder holder = (convertView != null)
+                    ? (RowViewHolder) convertView.getTag() : null;
+            if (holder == null || holder.itemViewType != ITEM_VIEW_TYPE_ACTIVITY) {
+                convertView = LayoutInflater.from(getContext()).inflate(
+                        R.layout.activity_chooser_view_list_item, parent, false);
+                holder = new RowViewHolder(ITEM_VIEW_TYPE_ACTIVITY, convertView);
+                convertView.setTag(holder);
+            }
+            holder.cancelIconLoad();
+            // Set the icon, but not the logo (activity icon), but the intent filter icon
+            Drawable icon = null;
+            if (showIcon) {
+                icon = mLabelIconCache.peekIcon(activity);
+                if (icon == null) {
+                    holder.iconLoadTask = new IconLoadTask(holder, activity);
+                    holder.iconLoadTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                }
+            }
+            holder.icon.setImageDrawable(icon);
+            // Set the title.
+            holder.title.setText(mLabelIconCache.getLabel(activity));
+            convertView.setActivated(activated);
+            return convertView;
+        }
+
+        /**
+         * Cancels the pending icon load of a row view that is no longer shown.
+         *
+         * @param view The row view.
+         */
+        public void onViewRecycled(View view) {
+            RowViewHolder holder = (RowViewHolder) view.getTag();
+            if (holder != null) {
+                holder.cancelIconLoad();
+            }
+        }
+
+        /**
+         * Forgets the measured row and content widths, e.g. when the data was
+         * invalidated or the configuration changed.
+         */
+        public void invalidateMeasurements() {
+            mRowWidths = null;
+            mRowWidthsDataModel = null;
+            mFooterWidth = -1;
+            mContentWidth = -1;
+            mContentWidthDataModel = null;
+        }
+
+        /**
+         * Gets the width of the widest row, memoized per data snapshot,
+         * font scale and rows shown.
+         *
+         * @return The content width.
+         */
         public int measureContentWidth() {
+            final int snapshotVersion = mSnapshot.getVersion();
+            final float fontScale = mContext.getResources().getConfiguration().fontScale;
+            if (mContentWidth >= 0 && mContentWidthDataModel == mDataModel
+                    && mContentWidthVersion == snapshotVersion
+                    && mContentWidthFontScale == fontScale
+                    && mContentWidthShowDefaultActivity == mShowDefaultActivity
+                    && mContentWidthShowFooterView == mShowFooterView) {
+                return mContentWidth;
+            }
+            mContentWidth = measureContentWidthUncached();
+            mContentWidthDataModel = mDataModel;
+            mContentWidthVersion = snapshotVersion;
+            mContentWidthFontScale = fontScale;
+            mContentWidthShowDefaultActivity = mShowDefaultActivity;
+            mContentWidthShowFooterView = mShowFooterView;
+            return mContentWidth;
+        }
+
+        /**
+         * Gets the width of the widest row, from the prefetched row widths if
+         * current, or else by measuring every row.
+         *
+         * @return The content width.
+         */
+        private int measureContentWidthUncached() {
+            if (hasRowWidths()) {
+                // Use the prefetched widths of the rows that getView() would give.
+                int contentWidth = mShowFooterView ? mFooterWidth : 0;
+                final int first = (!mShowDefaultActivity
+                        && mSnapshot.getDefaultActivity() != null) ? 1 : 0;
+                final int activityCount = mSnapshot.getActivityCount();
+                for (int i = first; i < activityCount; i++) {
+                    contentWidth = Math.max(contentWidth,
+                            mRowWidths.get(mSnapshot.getActivity(i)));
+                }
+                return contentWidth;
+            }
+
             // The user may have specified some of the target not to be shown but we
             // want to measure all of them since after expansion they should fit.
             final int oldMaxActivityCount = mMaxActivityCount;
@@ -823,7 +1192,13 @@ import android.widget.TextView;
             final int count = getCount();
 
             for (int i = 0; i < count; i++) {
-                itemView = getView(i, itemView, null);
+                if (getItemViewType(i) == ITEM_VIEW_TYPE_ACTIVITY) {
+                    // The icon has a fixed size, so it is not needed for measuring.
+                    itemView = bindActivityView((ResolveInfo) getItem(i), false, false,
+                            itemView, null);
+                } else {
+                    itemView = getView(i, itemView, null);
+                }
                 itemView.measure(widthMeasureSpec, heightMeasureSpec);
                 contentWidth = Math.max(contentWidth, itemView.getMeasuredWidth());
             }
@@ -841,7 +1216,7 @@ import android.widget.TextView;
         }
 
         public ResolveInfo getDefaultActivity() {
-            return mDataModel.getDefaultActivity();
+            return mSnapshot.getDefaultActivity();
         }
 
         public void setShowFooterView(boolean showFooterView) {
@@ -852,11 +1227,11 @@ import android.widget.TextView;
         }
 
         public int getActivityCount() {
-            return mDataModel.getActivityCount();
+            return mSnapshot.getActivityCount();
         }
 
         public int getHistorySize() {
-            return mDataModel.getHistorySize();
+            return mSnapshot.getHistorySize();
         }
 
         public int getMaxActivityCount() {
@@ -882,6 +1257,191 @@ import android.widget.TextView;
         }
     }
 
+    /**
+     * Views of a row of the popup list.
+     */
+    private static final class RowViewHolder {
+
+        /**
+         * The item view type of the row.
+         */
+        final int itemViewType;
+
+        /**
+         * The icon view.
+         */
+        final ImageView icon;
+
+        /**
+         * The title view.
+         */
+        final TextView title;
+
+        /**
+         * The pending load of the icon of the bound activity, if any.
+         */
+        AsyncTask<Void, Void, Drawable> iconLoadTask;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param itemViewType The item view type of the row.
+         * @param view The row view.
+         */
+        RowViewHolder(int itemViewType, View view) {
+            this.itemViewType = itemViewType;
+            icon = (ImageView) view.findViewById(R.id.icon);
+            title = (TextView) view.findViewById(R.id.title);
+        }
+
+        /**
+         * Cancels the pending icon load, if any.
+         */
+        void cancelIconLoad() {
+            if (iconLoadTask != null) {
+                iconLoadTask.cancel(false);
+                iconLoadTask = null;
+            }
+        }
+    }
+
+    /**
+     * Loads the icon of an activity in the background into a row, unless
+     * the row has been bound to something else meanwhile.
+     */
+    private final class IconLoadTask extends AsyncTask<Void, Void, Drawable> {
+
+        /**
+         * The row to set the icon in.
+         */
+        private final RowViewHolder mHolder;
+
+        /**
+         * The activity to load the icon of.
+         */
+        private final ResolveInfo mActivity;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param holder The row to set the icon in.
+         * @param activity The activity to load the icon of.
+         */
+        IconLoadTask(RowViewHolder holder, ResolveInfo activity) {
+            mHolder = holder;
+            mActivity = activity;
+        }
+
+        @Override
+        protected Drawable doInBackground(Void... params) {
+            return isCancelled() ? null : mLabelIconCache.getIcon(mActivity);
+        }
+
+        @Override
+        protected void onPostExecute(Drawable icon) {
+            if (mHolder.iconLoadTask == this) {
+                mHolder.iconLoadTask = null;
+                mHolder.icon.setImageDrawable(icon);
+            }
+        }
+    }
+
+    /**
+     * Loads the label and icon of the default activity in the background into
+     * the default activity button, unless the default activity has changed
+     * meanwhile.
+     */
+    private final class DefaultActivityLoadTask extends AsyncTask<Void, Void, Drawable> {
+
+        /**
+         * The activity to load the label and icon of.
+         */
+        final ResolveInfo mActivity;
+
+        /**
+         * The loaded label.
+         */
+        private CharSequence mLabel;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param activity The activity to load the label and icon of.
+         */
+        DefaultActivityLoadTask(ResolveInfo activity) {
+            mActivity = activity;
+        }
+
+        @Override
+        protected Drawable doInBackground(Void... params) {
+            if (isCancelled()) {
+                return null;
+            }
+            mLabel = mLabelIconCache.getLabel(mActivity);
+            return mLabelIconCache.getIcon(mActivity);
+        }
+
+        @Override
+        protected void onPostExecute(Drawable icon) {
+            if (mDefaultActivityLoadTask != this) {
+                return;
+            }
+            mDefaultActivityLoadTask = null;
+            if (mDefaultActivityButton.getVisibility() == VISIBLE
+                    && mAdapter.getDefaultActivity() == mActivity) {
+                setDefaultActivityAppearance(icon, mLabel);
+            }
+        }
+    }
+
+    /**
+     * Loads the labels and icons of activities into the cache in the
+     * background, and then has the adapter measure their rows.
+     */
+    private final class PrefetchTask extends AsyncTask<Void, Void, Void> {
+
+        /**
+         * The data model the activities are from.
+         */
+        final ActivityChooserModel mDataModel;
+
+        /**
+         * The snapshot of the data model with the activities.
+         */
+        final Snapshot mSnapshot;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param dataModel The data model the activities are from.
+         * @param snapshot The snapshot of the data model with the activities.
+         */
+        PrefetchTask(ActivityChooserModel dataModel, Snapshot snapshot) {
+            mDataModel = dataModel;
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            final int activityCount = mSnapshot.getActivityCount();
+            for (int i = 0; i < activityCount; i++) {
+                if (isCancelled()) {
+                    break;
+                }
+                final ResolveInfo activity = mSnapshot.getActivity(i);
+                mLabelIconCache.getLabel(activity);
+                mLabelIconCache.getIcon(activity);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            // Views are measured on the main thread, now without loading resources.
+            mAdapter.onPrefetched(this);
+        }
+    }
+
 	public void setMainLabel(String label) {
 		mMainActionLabel.setText(label);
 	}
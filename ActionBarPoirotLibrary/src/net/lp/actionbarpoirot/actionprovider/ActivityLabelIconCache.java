@@ -0,0 +1,334 @@
+/*
+ * 	 Copyright (C) 2014 pjv (and others)
+ *
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.actionprovider;
+
+import java.util.Locale;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.v4.util.LruCache;
+
+/**
+ * Process-wide cache of the labels and icons of resolved activities, which
+ * otherwise are loaded from the resources of their application every time.
+ * <p>
+ * Entries are keyed by the component, the installed package file of its
+ * application and the resource of the label or icon, which may come from the
+ * intent filter. The package file is taken from the resolved activity, so no
+ * call to the package manager is needed, and it changes with every update of
+ * the package. When the models reload their activities after a package
+ * change, the entries of the old version are no longer found and age out.
+ * Labels are also keyed by the current locale, so they follow a locale
+ * change without waiting for the old ones to age out. Icons are
+ * kept as {@link Drawable.ConstantState}s in an LRU cache bounded by
+ * {@link #ICON_CACHE_MAX_BYTES}, and every lookup returns a new drawable.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> This class is thread safe.
+ * </p>
+ *
+ * Related to the CustomActionProvider.
+ */
+final class ActivityLabelIconCache {
+
+    /**
+     * The maximal number of cached labels.
+     */
+    private static final int LABEL_CACHE_MAX_SIZE = 256;
+
+    /**
+     * The maximal estimated size in bytes of the cached icons.
+     */
+    private static final int ICON_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+
+    /**
+     * Size in bytes assumed for icons that are not bitmaps.
+     */
+    private static final int DEFAULT_ICON_BYTES = 4 * 48 * 48;
+
+    /**
+     * Lock for the singleton instance.
+     */
+    private static final Object sInstanceLock = new Object();
+
+    /**
+     * The singleton instance.
+     */
+    private static ActivityLabelIconCache sInstance;
+
+    /**
+     * The package manager to load labels and icons with.
+     */
+    private final PackageManager mPackageManager;
+
+    /**
+     * The application resources, for the current locale.
+     */
+    private final Resources mResources;
+
+    /**
+     * The cached labels.
+     */
+    private final LruCache<Key, CharSequence> mLabels =
+        new LruCache<Key, CharSequence>(LABEL_CACHE_MAX_SIZE);
+
+    /**
+     * The cached icons.
+     */
+    private final LruCache<Key, CachedIcon> mIcons = new LruCache<Key, CachedIcon>(
+            ICON_CACHE_MAX_BYTES) {
+        @Override
+        protected int sizeOf(Key key, CachedIcon icon) {
+            return icon.byteCount;
+        }
+    };
+
+    /**
+     * Gets the singleton instance.
+     *
+     * @param context Context for accessing the package manager.
+     * @return The cache.
+     */
+    static ActivityLabelIconCache getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new ActivityLabelIconCache(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param context Context for accessing the package manager.
+     */
+    private ActivityLabelIconCache(Context context) {
+        mPackageManager = context.getPackageManager();
+        mResources = context.getResources();
+    }
+
+    /**
+     * Gets the label of a resolved activity, as {@link ResolveInfo#loadLabel(PackageManager)}.
+     *
+     * @param resolveInfo The resolved activity.
+     * @return The label.
+     */
+    CharSequence getLabel(ResolveInfo resolveInfo) {
+        if (resolveInfo.nonLocalizedLabel != null) {
+            return resolveInfo.nonLocalizedLabel;
+        }
+        Key key = createKey(resolveInfo, resolveInfo.labelRes,
+                mResources.getConfiguration().locale);
+        CharSequence label = mLabels.get(key);
+        if (label == null) {
+            label = resolveInfo.loadLabel(mPackageManager);
+            if (label != null) {
+                mLabels.put(key, label);
+            }
+        }
+        return label;
+    }
+
+    /**
+     * Gets the label of a resolved activity if it is cached, without loading it.
+     *
+     * @param resolveInfo The resolved activity.
+     * @return The label, or <code>null</code> if not cached.
+     */
+    CharSequence peekLabel(ResolveInfo resolveInfo) {
+        if (resolveInfo.nonLocalizedLabel != null) {
+            return resolveInfo.nonLocalizedLabel;
+        }
+        return mLabels.get(createKey(resolveInfo, resolveInfo.labelRes,
+                mResources.getConfiguration().locale));
+    }
+
+    /**
+     * Gets the icon of a resolved activity, as {@link ResolveInfo#loadIcon(PackageManager)}.
+     *
+     * @param resolveInfo The resolved activity.
+     * @return A new icon drawable.
+     */
+    Drawable getIcon(ResolveInfo resolveInfo) {
+        Key key = createKey(resolveInfo, resolveInfo.getIconResource(), null);
+        CachedIcon cachedIcon = mIcons.get(key);
+        if (cachedIcon != null) {
+            return cachedIcon.constantState.newDrawable();
+        }
+        Drawable icon = resolveInfo.loadIcon(mPackageManager);
+        Drawable.ConstantState constantState = (icon != null) ? icon.getConstantState() : null;
+        if (constantState != null) {
+            mIcons.put(key, new CachedIcon(constantState, estimateByteCount(icon)));
+        }
+        return icon;
+    }
+
+    /**
+     * Gets the icon of a resolved activity if it is cached, without loading it.
+     *
+     * @param resolveInfo The resolved activity.
+     * @return A new icon drawable, or <code>null</code> if not cached.
+     */
+    Drawable peekIcon(ResolveInfo resolveInfo) {
+        CachedIcon cachedIcon = mIcons.get(createKey(resolveInfo, resolveInfo.getIconResource(),
+                null));
+        return (cachedIcon != null) ? cachedIcon.constantState.newDrawable() : null;
+    }
+
+    /**
+     * Creates the cache key for a resource of a resolved activity.
+     *
+     * @param resolveInfo The resolved activity.
+     * @param resourceId The label or icon resource, 0 for the default.
+     * @param locale The locale of a label, <code>null</code> for an icon.
+     * @return The key.
+     */
+    private Key createKey(ResolveInfo resolveInfo, int resourceId, Locale locale) {
+        ActivityInfo activityInfo = resolveInfo.activityInfo;
+        ApplicationInfo applicationInfo = activityInfo.applicationInfo;
+        return new Key(new ComponentName(activityInfo.packageName, activityInfo.name),
+                (applicationInfo != null) ? applicationInfo.sourceDir : null, resourceId, locale);
+    }
+
+    /**
+     * Estimates the memory used by an icon.
+     *
+     * @param icon The icon.
+     * @return The size in bytes.
+     */
+    private static int estimateByteCount(Drawable icon) {
+        if (icon instanceof BitmapDrawable) {
+            Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+            if (bitmap != null) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        }
+        final int width = icon.getIntrinsicWidth();
+        final int height = icon.getIntrinsicHeight();
+        if (width > 0 && height > 0) {
+            return 4 * width * height;
+        }
+        return DEFAULT_ICON_BYTES;
+    }
+
+    /**
+     * Key of a cached label or icon.
+     */
+    private static final class Key {
+
+        /**
+         * The activity.
+         */
+        private final ComponentName mComponent;
+
+        /**
+         * The installed package file of the application of the activity, or
+         * <code>null</code> if unknown.
+         */
+        private final String mSourceDir;
+
+        /**
+         * The label or icon resource.
+         */
+        private final int mResourceId;
+
+        /**
+         * The locale of a label, <code>null</code> for an icon.
+         */
+        private final Locale mLocale;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param component The activity.
+         * @param sourceDir The installed package file of the application of
+         *        the activity, or <code>null</code> if unknown.
+         * @param resourceId The label or icon resource.
+         * @param locale The locale of a label, <code>null</code> for an icon.
+         */
+        Key(ComponentName component, String sourceDir, int resourceId, Locale locale) {
+            mComponent = component;
+            mSourceDir = sourceDir;
+            mResourceId = resourceId;
+            mLocale = locale;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + mComponent.hashCode();
+            result = prime * result + ((mSourceDir == null) ? 0 : mSourceDir.hashCode());
+            result = prime * result + mResourceId;
+            result = prime * result + ((mLocale == null) ? 0 : mLocale.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return mResourceId == other.mResourceId && mComponent.equals(other.mComponent)
+                    && (mSourceDir == null ? other.mSourceDir == null
+                            : mSourceDir.equals(other.mSourceDir))
+                    && (mLocale == null ? other.mLocale == null : mLocale.equals(other.mLocale));
+        }
+    }
+
+    /**
+     * A cached icon with its estimated size.
+     */
+    private static final class CachedIcon {
+
+        /**
+         * The state to create new drawables from.
+         */
+        final Drawable.ConstantState constantState;
+
+        /**
+         * The estimated size in bytes.
+         */
+        final int byteCount;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param constantState The state to create new drawables from.
+         * @param byteCount The estimated size in bytes.
+         */
+        CachedIcon(Drawable.ConstantState constantState, int byteCount) {
+            this.constantState = constantState;
+            this.byteCount = byteCount;
+        }
+    }
+}
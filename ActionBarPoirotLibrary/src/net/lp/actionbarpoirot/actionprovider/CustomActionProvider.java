@@ -37,11 +37,11 @@ package net.lp.actionbarpoirot.actionprovider;
 
 import net.lp.actionbarpoirot.R;
 import net.lp.actionbarpoirot.actionprovider.ActivityChooserModel.OnChooseActivityListener;
+import net.lp.actionbarpoirot.actionprovider.ActivityChooserModel.Snapshot;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
@@ -103,6 +103,43 @@ import android.view.View;
     private final MenuItemOnMenuItemClickListener mOnMenuItemClickListener =
         new MenuItemOnMenuItemClickListener();
 
+    /**
+     * Listener for populating the expanded sub-menu when it is opened.
+     */
+    private final ExpandedSubMenuOnMenuItemClickListener mExpandedSubMenuClickListener =
+        new ExpandedSubMenuOnMenuItemClickListener();
+
+    /**
+     * The sub-menu last populated by {@link #onPrepareSubMenu(SubMenu)}.
+     */
+    private SubMenu mPreparedSubMenu;
+
+    /**
+     * The data model the prepared sub-menu was populated from.
+     */
+    private ActivityChooserModel mPreparedDataModel;
+
+    /**
+     * The snapshot of the data model the prepared sub-menu was populated
+     * from, which its item ids index.
+     */
+    private Snapshot mPreparedSnapshot;
+
+    /**
+     * The maximal number of activities the prepared sub-menu was populated with.
+     */
+    private int mPreparedMaxShownActivityCount;
+
+    /**
+     * The sub-menu with all activities, if the prepared sub-menu has one.
+     */
+    private SubMenu mExpandedSubMenu;
+
+    /**
+     * Whether the expanded sub-menu has been populated.
+     */
+    private boolean mExpandedSubMenuPopulated;
+
     /**
      * Context for accessing resources (themed).
      */
@@ -113,6 +150,11 @@ import android.view.View;
      */
     protected final Activity mActivity;
 
+    /**
+     * Cache of the labels and icons of the activities.
+     */
+    private final ActivityLabelIconCache mLabelIconCache;
+
     /**
      * The name of the file with history data.
      */
@@ -139,6 +181,7 @@ import android.view.View;
         super(context);
         mActivity = context;
         mContext = themedContext;
+        mLabelIconCache = ActivityLabelIconCache.getInstance(themedContext);
         setHistoryFileName(defaultHistoryFileName);
     }
 
@@ -205,34 +248,55 @@ import android.view.View;
      */
     @Override
     public void onPrepareSubMenu(SubMenu subMenu) {
+        ActivityChooserModel dataModel = ActivityChooserModel.get(mContext, mHistoryFileName);
+        final Snapshot snapshot = dataModel.getSnapshot();
+        if (subMenu == mPreparedSubMenu && dataModel == mPreparedDataModel
+                && snapshot == mPreparedSnapshot
+                && mMaxShownActivityCount == mPreparedMaxShownActivityCount) {
+            // Neither the activities nor their order changed.
+            return;
+        }
+
         // Clear since the order of items may change.
         subMenu.clear();
 
-        ActivityChooserModel dataModel = ActivityChooserModel.get(mContext, mHistoryFileName);
-        PackageManager packageManager = mContext.getPackageManager();
-
-        final int expandedActivityCount = dataModel.getActivityCount();
+        final int expandedActivityCount = snapshot.getActivityCount();
         final int collapsedActivityCount = Math.min(expandedActivityCount, mMaxShownActivityCount);
 
         // Populate the sub-menu with a sub set of the activities.
-        for (int i = 0; i < collapsedActivityCount; i++) {
-            ResolveInfo activity = dataModel.getActivity(i);
-            subMenu.add(0, i, i, activity.loadLabel(packageManager))
-                .setIcon(activity.loadIcon(packageManager))
-                .setOnMenuItemClickListener(mOnMenuItemClickListener);
-        }
+        addActivityItems(subMenu, snapshot, collapsedActivityCount);
 
+        mExpandedSubMenu = null;
+        mExpandedSubMenuPopulated = false;
         if (collapsedActivityCount < expandedActivityCount) {
-            // Add a sub-menu for showing all activities as a list item.
-            SubMenu expandedSubMenu = subMenu.addSubMenu(Menu.NONE, collapsedActivityCount,
+            // Add a sub-menu for showing all activities as a list item, which
+            // is only populated when opened.
+            mExpandedSubMenu = subMenu.addSubMenu(Menu.NONE, collapsedActivityCount,
                     collapsedActivityCount,
                     mContext.getString(R.string.activity_chooser_view_see_all));
-            for (int i = 0; i < expandedActivityCount; i++) {
-                ResolveInfo activity = dataModel.getActivity(i);
-                expandedSubMenu.add(0, i, i, activity.loadLabel(packageManager))
-                    .setIcon(activity.loadIcon(packageManager))
-                    .setOnMenuItemClickListener(mOnMenuItemClickListener);
-            }
+            mExpandedSubMenu.getItem().setOnMenuItemClickListener(mExpandedSubMenuClickListener);
+        }
+
+        mPreparedSubMenu = subMenu;
+        mPreparedDataModel = dataModel;
+        mPreparedSnapshot = snapshot;
+        mPreparedMaxShownActivityCount = mMaxShownActivityCount;
+    }
+
+    /**
+     * Adds menu items for the first activities of a snapshot of the data
+     * model, with their index in the snapshot as item id.
+     *
+     * @param menu The menu to add to.
+     * @param snapshot The snapshot of the data model.
+     * @param activityCount The number of activities to add.
+     */
+    private void addActivityItems(Menu menu, Snapshot snapshot, int activityCount) {
+        for (int i = 0; i < activityCount; i++) {
+            ResolveInfo activity = snapshot.getActivity(i);
+            menu.add(0, i, i, mLabelIconCache.getLabel(activity))
+                .setIcon(mLabelIconCache.getIcon(activity))
+                .setOnMenuItemClickListener(mOnMenuItemClickListener);
         }
     }
 
@@ -315,10 +379,9 @@ import android.view.View;
 	        // Request progress bar
         	//mContext.setProgressBarIndeterminateVisibility(true);//Not the right context
         	
-            ActivityChooserModel dataModel = ActivityChooserModel.get(mContext,
-                    mHistoryFileName);
+            // The item ids index the snapshot the menu was populated from.
             final int itemId = item.getItemId();
-            Intent launchIntent = dataModel.chooseActivity(itemId);
+            Intent launchIntent = mPreparedDataModel.chooseActivity(mPreparedSnapshot, itemId);
             if (launchIntent != null) {
                 launchIntent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_WHEN_TASK_RESET);
                 mContext.startActivity(launchIntent);
@@ -327,6 +390,23 @@ import android.view.View;
         }
     }
 
+    /**
+     * Listener for populating the expanded sub-menu before it is opened.
+     */
+    private class ExpandedSubMenuOnMenuItemClickListener implements OnMenuItemClickListener {
+        @Override
+        public boolean onMenuItemClick(MenuItem item) {
+            if (!mExpandedSubMenuPopulated && mExpandedSubMenu != null
+                    && mExpandedSubMenu.getItem() == item) {
+                addActivityItems(mExpandedSubMenu, mPreparedSnapshot,
+                        mPreparedSnapshot.getActivityCount());
+                mExpandedSubMenuPopulated = true;
+            }
+            // Not handled, so the menu goes on to open the sub-menu.
+            return false;
+        }
+    }
+
     /**
      * Set the activity chooser policy of the model backed by the current
      * history file if needed which is if there is a registered callback.
@@ -0,0 +1,268 @@
+/*
+ * 	 Copyright (C) 2014 pjv (and others)
+ *
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.actionprovider;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import net.lp.actionbarpoirot.actionprovider.ActivityChooserModel.HistoricalRecord;
+import android.content.ComponentName;
+
+/**
+ * Fixed-capacity ring buffer of the historical records of an
+ * {@link ActivityChooserModel}, oldest first.
+ * <p>
+ * Appending a record to a full buffer evicts the oldest one, and both take
+ * constant time. Only the interned component id, the time and the weight of
+ * a record are kept, in primitive columns, so sorters can go over the
+ * history without dereferencing every record, and no record objects or
+ * duplicate component names are held on to.
+ * </p>
+ * <p>
+ * As a {@link List} the buffer is read-only, so it can be handed to an
+ * {@link ActivityChooserModel.ActivitySorter} as is. Its records are created
+ * on access from the columns, with the component from the intern table.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> This class is not thread safe.
+ * </p>
+ *
+ * Related to the CustomActionProvider.
+ */
+final class HistoricalRecordBuffer extends AbstractList<HistoricalRecord>
+        implements RandomAccess {
+
+    /**
+     * The interned component id per slot, -1 for records without activity.
+     */
+    private int[] mComponentIds;
+
+    /**
+     * The choice time per slot.
+     */
+    private long[] mTimes;
+
+    /**
+     * The record weight per slot.
+     */
+    private float[] mWeights;
+
+    /**
+     * The interned components by id, shared with the model.
+     */
+    private final List<ComponentName> mComponents;
+
+    /**
+     * The slot of the oldest record.
+     */
+    private int mHead;
+
+    /**
+     * The number of records.
+     */
+    private int mSize;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param capacity The maximal number of records.
+     * @param components The interned components by id, shared with the model.
+     */
+    HistoricalRecordBuffer(int capacity, List<ComponentName> components) {
+        mComponents = components;
+        allocate(capacity);
+    }
+
+    /**
+     * Allocates the columns.
+     *
+     * @param capacity The maximal number of records.
+     */
+    private void allocate(int capacity) {
+        mComponentIds = new int[capacity];
+        mTimes = new long[capacity];
+        mWeights = new float[capacity];
+    }
+
+    /**
+     * Gets the maximal number of records.
+     *
+     * @return The capacity.
+     */
+    int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * Changes the maximal number of records, which takes linear time.
+     *
+     * @param capacity The new capacity, at least the current size.
+     */
+    void setCapacity(int capacity) {
+        if (capacity < mSize) {
+            throw new IllegalArgumentException("Capacity " + capacity
+                    + " smaller than size " + mSize);
+        }
+        if (capacity == mTimes.length) {
+            return;
+        }
+        final int[] componentIds = mComponentIds;
+        final long[] times = mTimes;
+        final float[] weights = mWeights;
+        final int oldCapacity = times.length;
+        allocate(capacity);
+        for (int i = 0; i < mSize; i++) {
+            final int slot = (mHead + i) % oldCapacity;
+            mComponentIds[i] = componentIds[slot];
+            mTimes[i] = times[slot];
+            mWeights[i] = weights[slot];
+        }
+        mHead = 0;
+    }
+
+    /**
+     * Appends a record as the newest one, evicting the oldest one if full.
+     *
+     * @param record The record, with its interned component id.
+     * @return The evicted record, the appended one if the capacity is zero,
+     *         or <code>null</code> if none.
+     */
+    HistoricalRecord append(HistoricalRecord record) {
+        final int capacity = mTimes.length;
+        if (capacity == 0) {
+            return record;
+        }
+        HistoricalRecord evictedRecord = null;
+        if (mSize == capacity) {
+            evictedRecord = removeFirst();
+        }
+        final int slot = (mHead + mSize) % capacity;
+        mComponentIds[slot] = record.componentId;
+        mTimes[slot] = record.time;
+        mWeights[slot] = record.weight;
+        mSize++;
+        modCount++;
+        return evictedRecord;
+    }
+
+    /**
+     * Inserts records before the oldest one. Records that do not fit are
+     * dropped, oldest first.
+     *
+     * @param records The records with their interned component ids, oldest first.
+     * @return The number of dropped records.
+     */
+    int prependAll(List<HistoricalRecord> records) {
+        final int capacity = mTimes.length;
+        final int recordCount = records.size();
+        final int insertCount = Math.min(recordCount, capacity - mSize);
+        for (int i = recordCount - 1; i >= recordCount - insertCount; i--) {
+            HistoricalRecord record = records.get(i);
+            mHead = (mHead + capacity - 1) % capacity;
+            mComponentIds[mHead] = record.componentId;
+            mTimes[mHead] = record.time;
+            mWeights[mHead] = record.weight;
+            mSize++;
+        }
+        modCount++;
+        return recordCount - insertCount;
+    }
+
+    /**
+     * Removes the oldest record.
+     *
+     * @return The removed record.
+     */
+    HistoricalRecord removeFirst() {
+        if (mSize == 0) {
+            throw new IndexOutOfBoundsException("Empty");
+        }
+        HistoricalRecord record = createRecord(mHead);
+        mHead = (mHead + 1) % mTimes.length;
+        mSize--;
+        modCount++;
+        return record;
+    }
+
+    /**
+     * Gets the interned component id of a record.
+     *
+     * @param index The index, oldest first.
+     * @return The component id, or -1 if the record has no activity.
+     */
+    int getComponentId(int index) {
+        return mComponentIds[slot(index)];
+    }
+
+    /**
+     * Gets the choice time of a record.
+     *
+     * @param index The index, oldest first.
+     * @return The time.
+     */
+    long getTime(int index) {
+        return mTimes[slot(index)];
+    }
+
+    /**
+     * Gets the weight of a record.
+     *
+     * @param index The index, oldest first.
+     * @return The weight.
+     */
+    float getWeight(int index) {
+        return mWeights[slot(index)];
+    }
+
+    @Override
+    public HistoricalRecord get(int index) {
+        return createRecord(slot(index));
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets the slot of a record.
+     *
+     * @param index The index, oldest first.
+     * @return The slot.
+     */
+    private int slot(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        }
+        return (mHead + index) % mTimes.length;
+    }
+
+    /**
+     * Creates the record in a slot.
+     *
+     * @param slot The slot.
+     * @return A new record.
+     */
+    private HistoricalRecord createRecord(int slot) {
+        final int componentId = mComponentIds[slot];
+        return new HistoricalRecord((componentId >= 0) ? mComponents.get(componentId) : null,
+                mTimes[slot], mWeights[slot], componentId);
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * 	 Copyright (C) 2014 pjv (and others)
+ *
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.actionprovider;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.lp.actionbarpoirot.actionprovider.ActivityChooserModel.HistoricalRecord;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Binary, append-only log of the historical choice records of an
+ * {@link ActivityChooserModel}.
+ * <p>
+ * The log starts with a small header and is followed by a sequence of entries.
+ * A component entry interns a component name under an integer id, the first
+ * time that component is chosen. A record entry is fixed-width and only refers
+ * to the interned id, so a choice costs {@link #RECORD_ENTRY_SIZE} bytes
+ * appended to the file instead of a rewrite of the whole history.
+ * </p>
+ * <p>
+ * Since records are only ever appended, the log contains records that were
+ * already pruned from the model. The model decides when to compact the log
+ * with {@link #rewrite(List)}, which writes only the live records.
+ * </p>
+ * <p>
+ * A damaged tail, e.g. an interrupted append or a zero-filled end after a
+ * crash, only loses the entries from the first bad one on. The records
+ * before it are read, and the log has to be rewritten before the next
+ * append, see {@link #needsRewrite()}.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> This class is thread safe.
+ * </p>
+ *
+ * Related to the CustomActionProvider.
+ */
+final class HistoricalRecordLog {
+
+    /**
+     * Flag for selecting debug mode.
+     */
+    private static final boolean DEBUG = false;
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String LOG_TAG = HistoricalRecordLog.class.getSimpleName();
+
+    /**
+     * The extension of the log file.
+     */
+    static final String LOG_FILE_EXTENSION = ".bin";
+
+    /**
+     * The suffix of the temporary file a replacement file is written to.
+     */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Magic number at the start of the log file.
+     */
+    private static final int MAGIC = 0x41434d48;
+
+    /**
+     * Version of the log file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Entry that interns a component name: tag, id, flattened name.
+     */
+    private static final int TAG_COMPONENT = 1;
+
+    /**
+     * Entry for a historical record: tag, component id, time, weight.
+     */
+    private static final int TAG_RECORD = 2;
+
+    /**
+     * The size in bytes of a record entry.
+     */
+    static final int RECORD_ENTRY_SIZE = 1 + 4 + 8 + 4;
+
+    /**
+     * Context for accessing files.
+     */
+    private final Context mContext;
+
+    /**
+     * The name of the log file.
+     */
+    private final String mFileName;
+
+    /**
+     * The ids of the components interned in the log file.
+     */
+    private final Map<ComponentName, Integer> mComponentIds =
+        new HashMap<ComponentName, Integer>();
+
+    /**
+     * The number of record entries in the log file.
+     */
+    private int mRecordCount;
+
+    /**
+     * Whether the log file has been found or written with a valid header.
+     */
+    private boolean mHeaderWritten;
+
+    /**
+     * Whether the log file has a damaged tail, after which nothing may be
+     * appended until it is rewritten.
+     */
+    private boolean mDamaged;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param context Context for accessing files.
+     * @param fileName The name of the log file.
+     */
+    HistoricalRecordLog(Context context, String fileName) {
+        mContext = context;
+        mFileName = fileName;
+    }
+
+    /**
+     * Gets the name of the log file.
+     *
+     * @return The file name.
+     */
+    String getFileName() {
+        return mFileName;
+    }
+
+    /**
+     * Gets the number of records in the log file, including records that
+     * are no longer part of the history but have not been compacted yet.
+     *
+     * @return The record count.
+     */
+    synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Gets whether the log file has to be rewritten before records can be
+     * appended, because its tail is damaged.
+     *
+     * @return Whether a rewrite is needed.
+     */
+    synchronized boolean needsRewrite() {
+        return mDamaged;
+    }
+
+    /**
+     * Reads all records from the log file, up to the first bad entry if its
+     * tail is damaged.
+     *
+     * @return The records, oldest first, or <code>null</code> if there is no log file.
+     * @throws IOException If the log file does not start with a valid header.
+     */
+    synchronized List<HistoricalRecord> read() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(mFileName)));
+        } catch (FileNotFoundException fnfe) {
+            if (DEBUG) {
+                Log.i(LOG_TAG, "Could not open historical records log: " + mFileName);
+            }
+            return null;
+        }
+        mComponentIds.clear();
+        mRecordCount = 0;
+        mHeaderWritten = false;
+        mDamaged = false;
+        List<HistoricalRecord> records = new ArrayList<HistoricalRecord>();
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a historical records log: " + mFileName);
+            }
+            mHeaderWritten = true;
+        } catch (IOException ioe) {
+            closeQuietly(in);
+            throw ioe;
+        }
+        try {
+            Map<Integer, ComponentName> components = new HashMap<Integer, ComponentName>();
+            while (true) {
+                final int tag = in.read();
+                if (tag == -1) {
+                    break;
+                }
+                if (tag == TAG_COMPONENT) {
+                    final int id = in.readInt();
+                    ComponentName component = ComponentName.unflattenFromString(in.readUTF());
+                    components.put(id, component);
+                    if (component != null) {
+                        mComponentIds.put(component, id);
+                    }
+                } else if (tag == TAG_RECORD) {
+                    final int id = in.readInt();
+                    final long time = in.readLong();
+                    final float weight = in.readFloat();
+                    ComponentName component = components.get(id);
+                    if (component == null) {
+                        throw new IOException("Unknown component id " + id + " in " + mFileName);
+                    }
+                    HistoricalRecord readRecord = new HistoricalRecord(component, time, weight);
+                    records.add(readRecord);
+                    mRecordCount++;
+                    if (DEBUG) {
+                        Log.i(LOG_TAG, "Read " + readRecord.toString());
+                    }
+                } else {
+                    throw new IOException("Historical records log not well-formed: " + mFileName);
+                }
+            }
+        } catch (IOException ioe) {
+            // E.g. an interrupted append or a garbage tail, keep what was complete.
+            Log.w(LOG_TAG, "Damaged historical records log, kept " + records.size()
+                    + " records: " + mFileName, ioe);
+            // Appending after a bad entry would not be read, it is rewritten first.
+            mDamaged = true;
+        } finally {
+            closeQuietly(in);
+        }
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Read " + records.size() + " historical records.");
+        }
+        return records;
+    }
+
+    /**
+     * Appends records to the log file. Falls back to writing a new log file
+     * if there is none yet.
+     *
+     * @param records The records to append, oldest first.
+     * @throws IOException If writing fails, or the log file has to be rewritten.
+     */
+    synchronized void append(List<HistoricalRecord> records) throws IOException {
+        if (mDamaged) {
+            throw new IOException("Damaged historical records log needs a rewrite: " + mFileName);
+        }
+        if (!mHeaderWritten) {
+            rewrite(records);
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                records.size() * RECORD_ENTRY_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<ComponentName, Integer> componentIds = new HashMap<ComponentName, Integer>(mComponentIds);
+        final int appendedCount = writeRecords(out, records, componentIds);
+        out.flush();
+
+        FileOutputStream fos = mContext.openFileOutput(mFileName, Context.MODE_APPEND);
+        try {
+            // A single write, so an interrupted append leaves at most one partial entry.
+            fos.write(bytes.toByteArray());
+        } finally {
+            try {
+                fos.close();
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+        }
+        mComponentIds.putAll(componentIds);
+        mRecordCount += appendedCount;
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Appended " + bytes.size() + " bytes to " + mFileName);
+        }
+    }
+
+    /**
+     * Replaces the log file by a compacted one with only the given records.
+     * The file is replaced atomically, so an interrupted rewrite leaves the
+     * previous log intact.
+     *
+     * @param records The records to keep, oldest first.
+     * @throws IOException If writing fails.
+     */
+    synchronized void rewrite(List<HistoricalRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                8 + records.size() * RECORD_ENTRY_SIZE);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        Map<ComponentName, Integer> componentIds = new HashMap<ComponentName, Integer>();
+        final int writtenCount = writeRecords(out, records, componentIds);
+        out.flush();
+
+        writeFileAtomically(mContext, mFileName, bytes.toByteArray());
+        mComponentIds.clear();
+        mComponentIds.putAll(componentIds);
+        mRecordCount = writtenCount;
+        mHeaderWritten = true;
+        mDamaged = false;
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Wrote " + writtenCount + " historical records to " + mFileName);
+        }
+    }
+
+    /**
+     * Replaces a private file by writing a temporary file and renaming it.
+     *
+     * @param context Context for accessing files.
+     * @param fileName The name of the file.
+     * @param contents The new contents.
+     * @throws IOException If writing or renaming fails.
+     */
+    static void writeFileAtomically(Context context, String fileName, byte[] contents)
+            throws IOException {
+        final String tempFileName = fileName + TEMP_FILE_SUFFIX;
+        FileOutputStream fos = context.openFileOutput(tempFileName, Context.MODE_PRIVATE);
+        try {
+            fos.write(contents);
+            fos.getFD().sync();
+        } finally {
+            try {
+                fos.close();
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+        }
+        if (!context.getFileStreamPath(tempFileName).renameTo(
+                context.getFileStreamPath(fileName))) {
+            context.deleteFile(tempFileName);
+            throw new IOException("Could not rename " + tempFileName + " to " + fileName);
+        }
+    }
+
+    /**
+     * Closes a stream, ignoring errors.
+     *
+     * @param in The stream.
+     */
+    private static void closeQuietly(DataInputStream in) {
+        try {
+            in.close();
+        } catch (IOException ioe) {
+            /* ignore */
+        }
+    }
+
+    /**
+     * Writes record entries, preceded by component entries for components
+     * that are not interned yet.
+     *
+     * @param out The output.
+     * @param records The records to write.
+     * @param componentIds The interned components, updated with new ones.
+     * @return The number of records written.
+     * @throws IOException If writing fails.
+     */
+    private static int writeRecords(DataOutputStream out, List<HistoricalRecord> records,
+            Map<ComponentName, Integer> componentIds) throws IOException {
+        int writtenCount = 0;
+        final int recordCount = records.size();
+        for (int i = 0; i < recordCount; i++) {
+            HistoricalRecord record = records.get(i);
+            if (record.activity == null) {
+                continue;
+            }
+            Integer id = componentIds.get(record.activity);
+            if (id == null) {
+                id = componentIds.size();
+                componentIds.put(record.activity, id);
+                out.writeByte(TAG_COMPONENT);
+                out.writeInt(id);
+                out.writeUTF(record.activity.flattenToString());
+            }
+            out.writeByte(TAG_RECORD);
+            out.writeInt(id);
+            out.writeLong(record.time);
+            out.writeFloat(record.weight);
+            writtenCount++;
+        }
+        return writtenCount;
+    }
+}
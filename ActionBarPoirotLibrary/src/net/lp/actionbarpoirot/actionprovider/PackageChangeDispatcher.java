@@ -0,0 +1,231 @@
+/*
+ * 	 Copyright (C) 2014 pjv (and others)
+ *
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.actionprovider;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Process-wide {@link PackageMonitor} that tells {@link Client}s about package
+ * changes that affect them.
+ * <p>
+ * Only one set of broadcast receivers is registered, no matter how many
+ * clients there are. Package events arriving in a burst, e.g. while several
+ * applications are updated, are coalesced by the {@link PackageMonitor} and
+ * delivered once after {@link #COALESCE_DELAY_MILLIS}. A client is only told
+ * about the packages it declared with {@link #setPackages(Client, Set)},
+ * except for packages that are newly added, which may concern any client.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> Clients are called on the background thread of the
+ * {@link PackageMonitor}.
+ * </p>
+ *
+ * Related to the CustomActionProvider.
+ */
+final class PackageChangeDispatcher extends PackageMonitor {
+
+    /**
+     * Flag for selecting debug mode.
+     */
+    private static final boolean DEBUG = false;
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String LOG_TAG = PackageChangeDispatcher.class.getSimpleName();
+
+    /**
+     * The time to wait for more package events before dispatching.
+     */
+    private static final long COALESCE_DELAY_MILLIS = 250;
+
+    /**
+     * Listener for package changes.
+     */
+    interface Client {
+
+        /**
+         * Called when packages of this client changed, or packages were added.
+         *
+         * @param changedPackages The changed packages this client declared.
+         * @param packagesAdded Whether new packages were added, which may
+         *        provide activities the client does not know about yet.
+         */
+        void onPackagesChanged(Set<String> changedPackages, boolean packagesAdded);
+    }
+
+    /**
+     * Lock for the singleton instance.
+     */
+    private static final Object sInstanceLock = new Object();
+
+    /**
+     * The singleton instance.
+     */
+    private static PackageChangeDispatcher sInstance;
+
+    /**
+     * Lock to guard the clients.
+     */
+    private final Object mInstanceLock = new Object();
+
+    /**
+     * The registered clients with the packages they declared.
+     */
+    private final Map<Client, Set<String>> mClientPackages = new HashMap<Client, Set<String>>();
+
+    /**
+     * The clients by declared package.
+     */
+    private final Map<String, Set<Client>> mPackageClients = new HashMap<String, Set<Client>>();
+
+    /**
+     * Gets the singleton instance, registering it on first use.
+     *
+     * @param context Context for registering the broadcast receivers.
+     * @return The dispatcher.
+     */
+    static PackageChangeDispatcher getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new PackageChangeDispatcher();
+                sInstance.setCoalescingWindow(COALESCE_DELAY_MILLIS);
+                sInstance.register(context.getApplicationContext(), null, true);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Creates a new instance.
+     */
+    private PackageChangeDispatcher() {
+        /* do nothing */
+    }
+
+    /**
+     * Registers a client or replaces the packages it declared.
+     *
+     * @param client The client.
+     * @param packageNames The packages the client depends on.
+     */
+    void setPackages(Client client, Set<String> packageNames) {
+        synchronized (mInstanceLock) {
+            removePackagesLocked(client);
+            Set<String> clientPackages = new HashSet<String>(packageNames);
+            mClientPackages.put(client, clientPackages);
+            for (String packageName : clientPackages) {
+                Set<Client> packageClients = mPackageClients.get(packageName);
+                if (packageClients == null) {
+                    packageClients = new HashSet<Client>();
+                    mPackageClients.put(packageName, packageClients);
+                }
+                packageClients.add(client);
+            }
+        }
+    }
+
+    /**
+     * Unregisters a client.
+     *
+     * @param client The client.
+     */
+    void removeClient(Client client) {
+        synchronized (mInstanceLock) {
+            removePackagesLocked(client);
+            mClientPackages.remove(client);
+        }
+    }
+
+    /**
+     * Removes a client from the package index.
+     *
+     * @param client The client.
+     */
+    private void removePackagesLocked(Client client) {
+        Set<String> clientPackages = mClientPackages.get(client);
+        if (clientPackages == null) {
+            return;
+        }
+        for (String packageName : clientPackages) {
+            Set<Client> packageClients = mPackageClients.get(packageName);
+            if (packageClients != null) {
+                packageClients.remove(client);
+                if (packageClients.isEmpty()) {
+                    mPackageClients.remove(packageName);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onSomePackagesChanged(Set<String> appearingPackages,
+            Set<String> disappearingPackages, Set<String> modifiedPackages) {
+        // Replaced packages appear and are modified, others are new.
+        boolean packagesAdded = false;
+        for (String packageName : appearingPackages) {
+            if (!modifiedPackages.contains(packageName)) {
+                packagesAdded = true;
+                break;
+            }
+        }
+        Set<String> changedPackages = modifiedPackages;
+        changedPackages.addAll(disappearingPackages);
+        changedPackages.addAll(appearingPackages);
+
+        final Map<Client, Set<String>> affectedClients = new HashMap<Client, Set<String>>();
+        synchronized (mInstanceLock) {
+            for (String packageName : changedPackages) {
+                Set<Client> packageClients = mPackageClients.get(packageName);
+                if (packageClients == null) {
+                    continue;
+                }
+                for (Client client : packageClients) {
+                    Set<String> clientChangedPackages = affectedClients.get(client);
+                    if (clientChangedPackages == null) {
+                        clientChangedPackages = new HashSet<String>();
+                        affectedClients.put(client, clientChangedPackages);
+                    }
+                    clientChangedPackages.add(packageName);
+                }
+            }
+            if (packagesAdded) {
+                for (Client client : mClientPackages.keySet()) {
+                    if (!affectedClients.containsKey(client)) {
+                        affectedClients.put(client, new HashSet<String>());
+                    }
+                }
+            }
+        }
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Dispatching package changes to " + affectedClients.size()
+                    + " clients, packages added: " + packagesAdded);
+        }
+        // Call the clients without holding the lock, they take their own.
+        for (Map.Entry<Client, Set<String>> entry : affectedClients.entrySet()) {
+            entry.getKey().onPackagesChanged(entry.getValue(), packagesAdded);
+        }
+    }
+}
@@ -35,6 +35,7 @@
 package net.lp.actionbarpoirot.actionprovider;
 
 import java.util.HashSet;
+import java.util.Set;
 
 import android.content.Context;
 import android.content.Intent;
@@ -86,6 +87,36 @@ public abstract class PackageMonitor extends android.content.BroadcastReceiver {
 
     String[] mTempArray = new String[1];
 
+    long mCoalescingWindowMillis;
+    boolean mCoalescedChangesPending;
+    HashSet<String> mCoalescedAppearingPackages = new HashSet<String>();
+    HashSet<String> mCoalescedDisappearingPackages = new HashSet<String>();
+    HashSet<String> mCoalescedModifiedPackages = new HashSet<String>();
+
+    final Runnable mDeliverCoalescedChanges = new Runnable() {
+        @Override
+        public void run() {
+            deliverCoalescedChanges();
+        }
+    };
+
+    /**
+     * Enables coalescing of package changes: instead of calling
+     * {@link #onSomePackagesChanged()} for every broadcast, the appearing,
+     * disappearing and modified packages are collected for the given window
+     * and then delivered at once to
+     * {@link #onSomePackagesChanged(Set, Set, Set)} on the registered handler.
+     * The per-package callbacks are not affected.
+     *
+     * @param windowMillis The window in milliseconds, or 0 to disable coalescing.
+     */
+    public void setCoalescingWindow(long windowMillis) {
+        if (mRegisteredContext != null) {
+            throw new IllegalStateException("Already registered");
+        }
+        mCoalescingWindowMillis = windowMillis;
+    }
+
     public void register(Context context, Looper thread, boolean externalStorage) {
 /*        register(context, thread, null, externalStorage);
     }
@@ -135,6 +166,8 @@ public abstract class PackageMonitor extends android.content.BroadcastReceiver {
         }
         mRegisteredContext.unregisterReceiver(this);
         mRegisteredContext = null;
+        mRegisteredHandler.removeCallbacks(mDeliverCoalescedChanges);
+        mCoalescedChangesPending = false;
     }
     
     //not yet implemented
@@ -258,6 +291,17 @@ public abstract class PackageMonitor extends android.content.BroadcastReceiver {
     
     public void onSomePackagesChanged() {
     }
+
+    /**
+     * Called once per coalescing window when coalescing is enabled with
+     * {@link #setCoalescingWindow(long)}. Packages that are being replaced are
+     * reported as appearing and modified, not as disappearing. The sets are
+     * owned by the callee. Calls {@link #onSomePackagesChanged()} by default.
+     */
+    public void onSomePackagesChanged(Set<String> appearingPackages,
+            Set<String> disappearingPackages, Set<String> modifiedPackages) {
+        onSomePackagesChanged();
+    }
     
     public void onFinishPackageChanges() {
     }
@@ -282,7 +326,7 @@ public abstract class PackageMonitor extends android.content.BroadcastReceiver {
         }*/
         onBeginPackageChanges();
         
-        mDisappearingPackages = mAppearingPackages = null;
+        mDisappearingPackages = mAppearingPackages = mModifiedPackages = null;
         mSomePackagesChanged = false;
         
         String action = intent.getAction();
@@ -393,11 +437,59 @@ public abstract class PackageMonitor extends android.content.BroadcastReceiver {
             }
         }
         
-        if (mSomePackagesChanged) {
+        if (mCoalescingWindowMillis > 0) {
+            coalesceChanges();
+        } else if (mSomePackagesChanged) {
             onSomePackagesChanged();
         }
         
         onFinishPackageChanges();
         /*mChangeUserId = UserHandle.USER_NULL;*/
     }
+
+    void coalesceChanges() {
+        boolean changed = false;
+        // Like the direct path, ignore force-stops, which only set disappearing
+        // packages and do not change what packages provide. Component changes
+        // are kept, as they can enable or disable activities.
+        if (mSomePackagesChanged && mAppearingPackages != null) {
+            changed |= addAll(mCoalescedAppearingPackages, mAppearingPackages);
+        }
+        if (mSomePackagesChanged && mDisappearingPackages != null
+                && mChangeType != PACKAGE_UPDATING) {
+            changed |= addAll(mCoalescedDisappearingPackages, mDisappearingPackages);
+        }
+        if (mModifiedPackages != null) {
+            changed |= addAll(mCoalescedModifiedPackages, mModifiedPackages);
+        }
+        if (changed && !mCoalescedChangesPending) {
+            mCoalescedChangesPending = true;
+            mRegisteredHandler.postDelayed(mDeliverCoalescedChanges, mCoalescingWindowMillis);
+        }
+    }
+
+    static boolean addAll(HashSet<String> set, String[] packages) {
+        boolean changed = false;
+        for (int i=0; i<packages.length; i++) {
+            if (packages[i] != null) {
+                set.add(packages[i]);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    void deliverCoalescedChanges() {
+        if (!mCoalescedChangesPending) {
+            return;
+        }
+        mCoalescedChangesPending = false;
+        HashSet<String> appearingPackages = mCoalescedAppearingPackages;
+        HashSet<String> disappearingPackages = mCoalescedDisappearingPackages;
+        HashSet<String> modifiedPackages = mCoalescedModifiedPackages;
+        mCoalescedAppearingPackages = new HashSet<String>();
+        mCoalescedDisappearingPackages = new HashSet<String>();
+        mCoalescedModifiedPackages = new HashSet<String>();
+        onSomePackagesChanged(appearingPackages, disappearingPackages, modifiedPackages);
+    }
 }
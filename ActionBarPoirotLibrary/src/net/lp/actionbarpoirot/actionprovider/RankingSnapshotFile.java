@@ -0,0 +1,206 @@
+/*
+ * 	 Copyright (C) 2014 pjv (and others)
+ *
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.actionprovider;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * File with the last known ranking of the activities of an
+ * {@link ActivityChooserModel}: the components in sorted order with their
+ * weights, and the history size at the time.
+ * <p>
+ * On a cold start the model reads this small file off the UI thread ahead
+ * of the history and orders the resolved activities by it, instead of
+ * showing them unsorted until the history has been read, and reconciles
+ * once it has. The model rewrites it when the order changes, and with the
+ * current weights when it is flushed.
+ * </p>
+ * <p>
+ * <strong>Note:</strong> This class is thread safe.
+ * </p>
+ *
+ * Related to the CustomActionProvider.
+ */
+final class RankingSnapshotFile {
+
+    /**
+     * Flag for selecting debug mode.
+     */
+    private static final boolean DEBUG = false;
+
+    /**
+     * Tag used for logging.
+     */
+    private static final String LOG_TAG = RankingSnapshotFile.class.getSimpleName();
+
+    /**
+     * The extension of the ranking file.
+     */
+    static final String RANKING_FILE_EXTENSION = ".rank";
+
+    /**
+     * Magic number at the start of the ranking file.
+     */
+    private static final int MAGIC = 0x41434d52;
+
+    /**
+     * Version of the ranking file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Context for accessing files.
+     */
+    private final Context mContext;
+
+    /**
+     * The name of the ranking file.
+     */
+    private final String mFileName;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param context Context for accessing files.
+     * @param fileName The name of the ranking file.
+     */
+    RankingSnapshotFile(Context context, String fileName) {
+        mContext = context;
+        mFileName = fileName;
+    }
+
+    /**
+     * Reads the ranking.
+     *
+     * @return The ranking, or <code>null</code> if there is no valid ranking file.
+     */
+    synchronized Ranking read() {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mContext.openFileInput(mFileName)));
+        } catch (FileNotFoundException fnfe) {
+            if (DEBUG) {
+                Log.i(LOG_TAG, "Could not open ranking file: " + mFileName);
+            }
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(LOG_TAG, "Not a ranking file: " + mFileName);
+                return null;
+            }
+            final int historySize = in.readInt();
+            final int componentCount = in.readInt();
+            List<ComponentName> components = new ArrayList<ComponentName>(componentCount);
+            float[] weights = new float[componentCount];
+            for (int i = 0; i < componentCount; i++) {
+                components.add(ComponentName.unflattenFromString(in.readUTF()));
+                weights[i] = in.readFloat();
+            }
+            if (DEBUG) {
+                Log.i(LOG_TAG, "Read ranking of " + componentCount + " activities.");
+            }
+            return new Ranking(components, weights, historySize);
+        } catch (EOFException eofe) {
+            Log.w(LOG_TAG, "Truncated ranking file: " + mFileName);
+            return null;
+        } catch (IOException ioe) {
+            Log.e(LOG_TAG, "Error reading ranking file: " + mFileName, ioe);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+        }
+    }
+
+    /**
+     * Replaces the ranking file atomically.
+     *
+     * @param ranking The ranking.
+     * @throws IOException If writing fails.
+     */
+    synchronized void write(Ranking ranking) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(ranking.historySize);
+        final int componentCount = ranking.components.size();
+        out.writeInt(componentCount);
+        for (int i = 0; i < componentCount; i++) {
+            out.writeUTF(ranking.components.get(i).flattenToString());
+            out.writeFloat(ranking.weights[i]);
+        }
+        out.flush();
+
+        HistoricalRecordLog.writeFileAtomically(mContext, mFileName, bytes.toByteArray());
+        if (DEBUG) {
+            Log.i(LOG_TAG, "Wrote ranking of " + componentCount + " activities to " + mFileName);
+        }
+    }
+
+    /**
+     * A ranking of activities.
+     */
+    static final class Ranking {
+
+        /**
+         * The components, best ranked first.
+         */
+        final List<ComponentName> components;
+
+        /**
+         * The weight per component.
+         */
+        final float[] weights;
+
+        /**
+         * The number of historical records the ranking was based on.
+         */
+        final int historySize;
+
+        /**
+         * Creates a new instance.
+         *
+         * @param components The components, best ranked first.
+         * @param weights The weight per component.
+         * @param historySize The number of historical records the ranking was based on.
+         */
+        Ranking(List<ComponentName> components, float[] weights, int historySize) {
+            this.components = components;
+            this.weights = weights;
+            this.historySize = historySize;
+        }
+    }
+}
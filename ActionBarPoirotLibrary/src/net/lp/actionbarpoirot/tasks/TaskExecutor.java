@@ -0,0 +1,529 @@
+/*   
+ * 	 Copyright (C) 2014 pjv (and others)
+ * 
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.tasks;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.lp.actionbarpoirot.PoirotWindow;
+import net.lp.actionbarpoirot.tasks.VisibleTask.Priority;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * {@link Executor} for {@link VisibleTask}s, with a fixed number of threads
+ * and a bounded queue. What happens to a task when there is no room for it is
+ * decided by the {@link Policy}.
+ * 
+ * Unlike the shared {@link android.os.AsyncTask} executors, tasks of one
+ * {@link TaskManager} do not wait behind unrelated work, and a burst of tasks
+ * cannot grow the number of threads.
+ * 
+ * Waiting tasks are started in order of their {@link Priority}, so an
+ * interactive task does not wait behind queued background tasks. When the
+ * queue is full, a task can take the place of a waiting task of a lower
+ * {@link Priority}, which is then cancelled, and a waiting task that is
+ * cancelled gives up its place, see {@link #remove(VisibleTask)}. The time tasks spend waiting is
+ * kept per {@link Priority}, see {@link #getQueueTimes(Priority)}.
+ */
+public class TaskExecutor implements Executor {
+
+	public static final String TAG = PoirotWindow.TAG + " TaskExecutor";
+
+	/**
+	 * What to do with a task when all threads are busy.
+	 */
+	public enum Policy {
+		/**
+		 * Queue the task, and refuse it when the queue is full.
+		 */
+		QUEUE,
+		/**
+		 * Refuse the task, never queue.
+		 */
+		REJECT,
+		/**
+		 * Queue the task before the others of its {@link Priority}, and drop
+		 * the oldest of them when the queue is full. For tasks of which only
+		 * the latest matter.
+		 */
+		NEWEST_FIRST
+	}
+
+	/**
+	 * Default number of tasks running at the same time.
+	 */
+	public static final int DEFAULT_PARALLELISM = 2;
+
+	/**
+	 * Default number of tasks waiting for a thread.
+	 */
+	public static final int DEFAULT_QUEUE_CAPACITY = 8;
+
+	/**
+	 * Time after which idle threads end.
+	 */
+	private static final long KEEP_ALIVE_SECONDS = 1;
+
+	/**
+	 * Counter for naming the threads.
+	 */
+	private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+	/**
+	 * The number of tasks running at the same time.
+	 */
+	private final int parallelism;
+
+	/**
+	 * The number of tasks waiting for a thread.
+	 */
+	private final int queueCapacity;
+
+	/**
+	 * What to do with a task when all threads are busy.
+	 */
+	private final Policy policy;
+
+	/**
+	 * The threads. Only handed as many tasks as there are threads.
+	 */
+	private final ThreadPoolExecutor threads;
+
+	/**
+	 * A lock.
+	 */
+	private final Object mLock = new Object();
+
+	/**
+	 * The tasks waiting for a thread per {@link Priority}, next first.
+	 * Guarded by the lock.
+	 */
+	private final ArrayDeque<QueuedTask>[] queues;
+
+	/**
+	 * The number of waiting tasks. Guarded by the lock.
+	 */
+	private int queued;
+
+	/**
+	 * The number of running tasks. Guarded by the lock.
+	 */
+	private int running;
+
+	/**
+	 * The number of started tasks per {@link Priority}. Guarded by the lock.
+	 */
+	private final int[] startedCounts = new int[Priority.values().length];
+
+	/**
+	 * The total time started tasks waited per {@link Priority}. Guarded by the
+	 * lock.
+	 */
+	private final long[] totalQueueMillis = new long[Priority.values().length];
+
+	/**
+	 * The longest time a started task waited per {@link Priority}. Guarded by
+	 * the lock.
+	 */
+	private final long[] maxQueueMillis = new long[Priority.values().length];
+
+	/**
+	 * Executors that submit with a {@link Priority}, by priority.
+	 */
+	private final Executor[] priorityExecutors = new Executor[Priority.values().length];
+
+	/**
+	 * Constructor with the defaults.
+	 */
+	public TaskExecutor() {
+		this(DEFAULT_PARALLELISM, DEFAULT_QUEUE_CAPACITY, Policy.QUEUE);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param parallelism
+	 *            The number of tasks running at the same time.
+	 * @param queueCapacity
+	 *            The number of tasks waiting for a thread.
+	 * @param policy
+	 *            What to do with a task when all threads are busy.
+	 */
+	@SuppressWarnings("unchecked")
+	public TaskExecutor(int parallelism, int queueCapacity, Policy policy) {
+		if (parallelism < 1 || queueCapacity < 0 || policy == null) {
+			throw new IllegalArgumentException("Invalid executor configuration.");
+		}
+		this.parallelism = parallelism;
+		this.queueCapacity = queueCapacity;
+		this.policy = policy;
+		threads = new ThreadPoolExecutor(parallelism, parallelism,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(r, "VisibleTask #"
+								+ sThreadCount.incrementAndGet());
+					}
+				});
+		threads.allowCoreThreadTimeOut(true);
+		final Priority[] priorities = Priority.values();
+		queues = new ArrayDeque[priorities.length];
+		for (final Priority priority : priorities) {
+			queues[priority.ordinal()] = new ArrayDeque<QueuedTask>();
+			priorityExecutors[priority.ordinal()] = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					TaskExecutor.this.execute(command, priority);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Whether a task would be accepted now, rather than refused.
+	 * 
+	 * @param priority
+	 * @return
+	 */
+	public boolean hasRoom(Priority priority) {
+		synchronized (mLock) {
+			return running < parallelism
+					|| (policy != Policy.REJECT && (queued < queueCapacity
+							|| findDroppableLocked(priority) >= 0));
+		}
+	}
+
+	/**
+	 * Gets an executor that submits to this one with a priority, e.g. for
+	 * {@link android.os.AsyncTask#executeOnExecutor(Executor, Object...)}.
+	 * 
+	 * @param priority
+	 * @return
+	 */
+	public Executor withPriority(Priority priority) {
+		return priorityExecutors[priority.ordinal()];
+	}
+
+	/**
+	 * Gets an executor that submits a task to this one with its priority, for
+	 * {@link android.os.AsyncTask#executeOnExecutor(Executor, Object...)}.
+	 * If the task is dropped from the queue, it is cancelled as an
+	 * {@link android.os.AsyncTask}, so it finishes with
+	 * {@link android.os.AsyncTask#onCancelled()}.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	public Executor forTask(final VisibleTask<?, ?, ?, ?, ?> task) {
+		return new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				TaskExecutor.this.execute(command, task.getPriority(), task);
+			}
+		};
+	}
+
+	/**
+	 * Removes a task from the queue, if it is still waiting for a thread, so
+	 * it no longer takes up room. Call when cancelling the task.
+	 * 
+	 * @param task
+	 * @return Whether the task was waiting.
+	 */
+	public boolean remove(VisibleTask<?, ?, ?, ?, ?> task) {
+		synchronized (mLock) {
+			for (ArrayDeque<QueuedTask> queue : queues) {
+				final Iterator<QueuedTask> iterator = queue.iterator();
+				while (iterator.hasNext()) {
+					if (iterator.next().task == task) {
+						iterator.remove();
+						queued--;
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * Executes with {@link Priority#USER_INITIATED}.
+	 * 
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(Runnable command) {
+		execute(command, Priority.USER_INITIATED);
+	}
+
+	/**
+	 * Executes a task with a priority.
+	 * 
+	 * @param command
+	 * @param priority
+	 * @throws RejectedExecutionException
+	 *             If there is no room for the task.
+	 */
+	public void execute(Runnable command, Priority priority) {
+		execute(command, priority, null);
+	}
+
+	/**
+	 * Executes a command of a task with a priority.
+	 * 
+	 * @param command
+	 * @param priority
+	 * @param task
+	 *            The task of the command, or <code>null</code>.
+	 * @throws RejectedExecutionException
+	 *             If there is no room for the task.
+	 */
+	private void execute(Runnable command, Priority priority,
+			VisibleTask<?, ?, ?, ?, ?> task) {
+		QueuedTask dropped = null;
+		synchronized (mLock) {
+			if (running < parallelism) {
+				running++;
+				onStartLocked(priority, 0);
+				threads.execute(wrap(command));
+				return;
+			}
+			if (policy == Policy.REJECT) {
+				throw new RejectedExecutionException("No room for another task.");
+			}
+			if (queued >= queueCapacity) {
+				final int droppable = findDroppableLocked(priority);
+				if (droppable < 0) {
+					throw new RejectedExecutionException("No room for another task.");
+				}
+				// The oldest of newest-first tasks, the newest otherwise.
+				dropped = queues[droppable].pollLast();
+				queued--;
+			}
+			final QueuedTask queuedTask = new QueuedTask(command, priority,
+					task, SystemClock.uptimeMillis());
+			if (policy == Policy.NEWEST_FIRST) {
+				queues[priority.ordinal()].addFirst(queuedTask);
+			} else {
+				queues[priority.ordinal()].addLast(queuedTask);
+			}
+			queued++;
+		}
+		if (dropped != null) {
+			// Lets the task finish as cancelled, on the UI thread.
+			if (dropped.task != null) {
+				dropped.task.cancel(false);
+			} else if (dropped.command instanceof Future) {
+				((Future<?>) dropped.command).cancel(false);
+			}
+			if (PoirotWindow.DEBUG)
+				Log.d(TAG, "Queue full, dropped a waiting " + dropped.priority
+						+ " task.");
+		}
+	}
+
+	/**
+	 * Gets the times tasks waited for a thread.
+	 * 
+	 * @param priority
+	 * @return
+	 */
+	public QueueTimes getQueueTimes(Priority priority) {
+		synchronized (mLock) {
+			final int index = priority.ordinal();
+			return new QueueTimes(startedCounts[index],
+					totalQueueMillis[index], maxQueueMillis[index]);
+		}
+	}
+
+	/**
+	 * Finds the queue of the waiting tasks that may be dropped for a new
+	 * task: the lowest {@link Priority} below it, or equal to it for
+	 * {@link Policy#NEWEST_FIRST}.
+	 * 
+	 * @param priority
+	 * @return The priority index, or -1 if none.
+	 */
+	private int findDroppableLocked(Priority priority) {
+		final int highest = (policy == Policy.NEWEST_FIRST) ? priority.ordinal()
+				: priority.ordinal() + 1;
+		for (int index = queues.length - 1; index >= highest; index--) {
+			if (!queues[index].isEmpty()) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts a started task.
+	 * 
+	 * @param priority
+	 * @param queueMillis
+	 *            The time it waited.
+	 */
+	private void onStartLocked(Priority priority, long queueMillis) {
+		final int index = priority.ordinal();
+		startedCounts[index]++;
+		totalQueueMillis[index] += queueMillis;
+		maxQueueMillis[index] = Math.max(maxQueueMillis[index], queueMillis);
+	}
+
+	/**
+	 * Wraps a task to hand the thread to the next waiting task when done.
+	 * 
+	 * @param command
+	 * @return
+	 */
+	private Runnable wrap(final Runnable command) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				try {
+					command.run();
+				} finally {
+					scheduleNext();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Starts the next waiting task of the highest {@link Priority}, if any.
+	 */
+	private void scheduleNext() {
+		synchronized (mLock) {
+			for (ArrayDeque<QueuedTask> queue : queues) {
+				final QueuedTask next = queue.pollFirst();
+				if (next != null) {
+					queued--;
+					onStartLocked(next.priority, SystemClock.uptimeMillis()
+							- next.queuedAt);
+					threads.execute(wrap(next.command));
+					return;
+				}
+			}
+			running--;
+		}
+	}
+
+	/**
+	 * A task waiting for a thread.
+	 */
+	private static final class QueuedTask {
+
+		/**
+		 * The task.
+		 */
+		final Runnable command;
+
+		/**
+		 * The priority.
+		 */
+		final Priority priority;
+
+		/**
+		 * The task of the command, or <code>null</code>.
+		 */
+		final VisibleTask<?, ?, ?, ?, ?> task;
+
+		/**
+		 * The time it was queued.
+		 */
+		final long queuedAt;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param command
+		 * @param priority
+		 * @param task
+		 * @param queuedAt
+		 */
+		QueuedTask(Runnable command, Priority priority,
+				VisibleTask<?, ?, ?, ?, ?> task, long queuedAt) {
+			this.command = command;
+			this.priority = priority;
+			this.task = task;
+			this.queuedAt = queuedAt;
+		}
+	}
+
+	/**
+	 * The times tasks of one {@link Priority} waited for a thread, for
+	 * checking that interactive tasks start quickly under load.
+	 */
+	public static final class QueueTimes {
+
+		/**
+		 * The number of started tasks, including those that did not wait.
+		 */
+		public final int count;
+
+		/**
+		 * The total time waited.
+		 */
+		public final long totalMillis;
+
+		/**
+		 * The longest time waited.
+		 */
+		public final long maxMillis;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param count
+		 * @param totalMillis
+		 * @param maxMillis
+		 */
+		QueueTimes(int count, long totalMillis, long maxMillis) {
+			this.count = count;
+			this.totalMillis = totalMillis;
+			this.maxMillis = maxMillis;
+		}
+
+		/**
+		 * Gets the average time waited.
+		 * 
+		 * @return
+		 */
+		public long getAverageMillis() {
+			return (count > 0) ? totalMillis / count : 0;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " average=" + getAverageMillis()
+					+ "ms max=" + maxMillis + "ms";
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*   
+ * 	 Copyright (C) 2014 pjv (and others)
+ * 
+ * 	 This file is part of ActionBarPoirot.
+ *
+ *   ActionBarPoirot is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   ActionBarPoirot is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with ActionBarPoirot.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.lp.actionbarpoirot.tasks;
+
+import net.lp.actionbarpoirot.PoirotWindow;
+import android.os.Bundle;
+import android.support.v4.app.FragmentActivity;
+
+/**
+ * Creates a {@link VisibleTask} when restoring it from the instance state,
+ * without reflection. Register one per task class with
+ * {@link TaskManager#registerTaskFactory(String, Class, TaskFactory)}.
+ * 
+ * @param <C>
+ *            The activity the task is restored in.
+ */
+public interface TaskFactory<C extends FragmentActivity & PoirotWindow> {
+
+	/**
+	 * Create a new task, which is then restarted with
+	 * {@link VisibleTask#restart(FragmentActivity, Bundle)}.
+	 * 
+	 * @param context
+	 * @return
+	 */
+	public VisibleTask<?, ?, ?, ?, ?> create(C context);
+}
@@ -19,6 +19,7 @@
 package net.lp.actionbarpoirot.tasks;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.concurrent.RejectedExecutionException;
 
@@ -30,6 +31,7 @@ import net.lp.actionbarpoirot.exceptions.TaskUnavailableException;
 import net.lp.actionbarpoirot.util.UiUtilities;
 import net.lp.actionbarpoirot.R;
 import android.app.Activity;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.support.v4.app.FragmentActivity;
@@ -49,6 +51,11 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 	 */
 	public static final String KEY_TASK_CLASS = "task_class";
 
+	/*
+	 * Key to save the task's registered id in the instance state.
+	 */
+	public static final String KEY_TASK_ID = "task_id";
+
 	/*
 	 * Key to save the list of tasks in the instance state.
 	 */
@@ -57,11 +64,118 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 	
 	public static final String TAG = PoirotWindow.TAG + "TaskManager";
 
+	/**
+	 * The registered task factories by id. Guarded by itself.
+	 */
+	private static final HashMap<String, TaskFactory<?>> sTaskFactories = new HashMap<String, TaskFactory<?>>();
+
+	/**
+	 * The ids of the registered task classes. Guarded by the factories.
+	 */
+	private static final HashMap<Class<?>, String> sTaskIds = new HashMap<Class<?>, String>();
+
 	/**
 	 * List of managed {@link VisibleTask}s.
 	 */
 	public ArrayList<VisibleTask<?, ?, ?, ?, ?>> tasks = new ArrayList<VisibleTask<?, ?, ?, ?, ?>>();
 
+	/**
+	 * Index of the managed tasks by class and by {@link UserTask#getParamKey()},
+	 * for finding duplicates without matching every task.
+	 */
+	private final HashMap<Class<?>, HashMap<String, VisibleTask<?, ?, ?, ?, ?>>> index = new HashMap<Class<?>, HashMap<String, VisibleTask<?, ?, ?, ?, ?>>>();
+
+	/**
+	 * The executor of the managed {@link VisibleTask}s.
+	 */
+	protected final TaskExecutor executor;
+
+	/**
+	 * Constructor with a default {@link TaskExecutor}.
+	 */
+	public TaskManager() {
+		this(new TaskExecutor());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param executor
+	 *            The executor of the managed {@link VisibleTask}s, which sets
+	 *            their parallelism, queue and backpressure policy.
+	 */
+	public TaskManager(TaskExecutor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Register the factory of a task class, so its saved tasks are restored
+	 * without reflection. Register before restoring, also after the process
+	 * was restarted, e.g. from {@link android.app.Application#onCreate()}.
+	 * Tasks of classes without factory are still restored by reflection.
+	 * 
+	 * @param id
+	 *            A short id that stays the same across versions, as it is
+	 *            saved in the instance state, next to the class name for
+	 *            when the factory is not registered.
+	 * @param taskClass
+	 * @param factory
+	 */
+	public static void registerTaskFactory(String id,
+			Class<? extends VisibleTask> taskClass, TaskFactory<?> factory) {
+		synchronized (sTaskFactories) {
+			final String registeredId = sTaskIds.get(taskClass);
+			if (registeredId != null && !registeredId.equals(id)) {
+				throw new IllegalArgumentException(taskClass.getName()
+						+ " is already registered as " + registeredId);
+			}
+			if (registeredId == null && sTaskFactories.containsKey(id)) {
+				throw new IllegalArgumentException("Task id " + id
+						+ " is already registered.");
+			}
+			sTaskFactories.put(id, factory);
+			sTaskIds.put(taskClass, id);
+		}
+	}
+
+	/**
+	 * Gets the executor of the managed tasks, e.g. for its queue times.
+	 * 
+	 * @return
+	 */
+	public TaskExecutor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * Execute a task on the executor of this manager, instead of on the shared
+	 * {@link AsyncTask} executors, with the priority of the task. A task that
+	 * is refused is not started, so its panel is not shown, except when room
+	 * is taken from another thread meanwhile, which hides the panel again.
+	 * 
+	 * @param task
+	 * @param params
+	 * @throws TaskUnavailableException
+	 *             If there is no room for another task.
+	 */
+	public <Params> void execute(VisibleTask<Params, ?, ?, ?, ?> task,
+			Params... params) throws TaskUnavailableException {
+		final VisibleTask.Priority priority = task.getPriority();
+		if (!executor.hasRoom(priority)) {
+			throw new TaskUnavailableException("No room for another task.");
+		}
+		task.onExecuteOnTaskManager();
+		try {
+			task.executeOnExecutor(executor.forTask(task), params);
+		} catch (RejectedExecutionException e) {
+			// Room was taken from another thread after onPreExecute() showed
+			// the panel, hide it and end the started task.
+			task.onRejected();
+			task.cancel(false);
+			throw new TaskUnavailableException(e);
+		}
+	}
+
 	/**
 	 * Add a task to this manager.
 	 * 
@@ -69,6 +183,48 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 	 */
 	public void addAndManage(VisibleTask<?, ?, ?, ?, ?> task) {
 		tasks.add(task);
+		addToIndex(task);
+	}
+
+	/**
+	 * Add a task to the index.
+	 * 
+	 * @param task
+	 */
+	private void addToIndex(VisibleTask<?, ?, ?, ?, ?> task) {
+		HashMap<String, VisibleTask<?, ?, ?, ?, ?>> classTasks = index.get(task
+				.getClass());
+		if (classTasks == null) {
+			classTasks = new HashMap<String, VisibleTask<?, ?, ?, ?, ?>>();
+			index.put(task.getClass(), classTasks);
+		}
+		classTasks.put(task.getParamKey(), task);
+	}
+
+	/**
+	 * Remove a task from the index.
+	 * 
+	 * @param task
+	 */
+	private void removeFromIndex(VisibleTask<?, ?, ?, ?, ?> task) {
+		HashMap<String, VisibleTask<?, ?, ?, ?, ?>> classTasks = index.get(task
+				.getClass());
+		if (classTasks != null && classTasks.get(task.getParamKey()) == task) {
+			classTasks.remove(task.getParamKey());
+			if (classTasks.isEmpty()) {
+				index.remove(task.getClass());
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the index after the list of tasks was replaced.
+	 */
+	private void reindex() {
+		index.clear();
+		for (VisibleTask<?, ?, ?, ?, ?> task : tasks) {
+			addToIndex(task);
+		}
 	}
 
 	/**
@@ -82,10 +238,18 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 			cancelTask(task);
 		}
 		tasks.clear();
+		index.clear();
+		if (PoirotWindow.DEBUG) {
+			for (VisibleTask.Priority priority : VisibleTask.Priority.values()) {
+				Log.d(TAG, "Queue times of " + priority + " tasks: "
+						+ executor.getQueueTimes(priority));
+			}
+		}
 	}
 
 	/**
-	 * Whether the task is managed here.
+	 * Whether an active task of the same class and param key is managed here,
+	 * see {@link UserTask#matches(UserTask, String...)}.
 	 * 
 	 * @param other
 	 * @param params
@@ -93,17 +257,35 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 	 */
 	public boolean existsTask(VisibleTask<?, ?, ?, ?, ?> other,
 			String... params) {
-		if (tasks == null){
+		HashMap<String, VisibleTask<?, ?, ?, ?, ?>> classTasks = index.get(other
+				.getClass());
+		if (classTasks == null) {
 			return false;
 		}
-		for (VisibleTask<?, ?, ?, ?, ?> task : tasks) {
-			if (task.matches(other, params)) {
+		final String paramKey = other.getParamKey();
+		if (paramKey != null) {
+			// A task without key matches any key.
+			return isActive(classTasks.get(paramKey))
+					|| isActive(classTasks.get(null));
+		}
+		for (VisibleTask<?, ?, ?, ?, ?> task : classTasks.values()) {
+			if (isActive(task)) {
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/**
+	 * Whether a task is not finished.
+	 * 
+	 * @param task
+	 * @return
+	 */
+	private static boolean isActive(VisibleTask<?, ?, ?, ?, ?> task) {
+		return task != null && task.getStatus() != VisibleTask.Status.FINISHED;
+	}
+
 	/**
 	 * Perform actions when canceling a task, and cancel the task.
 	 * 
@@ -120,8 +302,11 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 	 */
 	protected void cancelTask(VisibleTask<?, ?, ?, ?, ?> task) {
 		if (task != null && task.getStatus() != VisibleTask.Status.FINISHED) {
+			// Gives up its place in the queue, if still waiting.
+			executor.remove(task);
 			task.cancel(true);
 			tasks.remove(task);
+			removeFromIndex(task);
 		}
 	}
 
@@ -157,13 +342,12 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 		if (tasks == null) {
 			tasks = new ArrayList<VisibleTask<?, ?, ?, ?, ?>>();
 		}
+		reindex();
 
 		for (VisibleTask<?, ?, ?, ?, ?> task : tasks) {
 			try {
-				// Not parallel but sequential, post-Honeycomb
-				((VisibleTask) task)
-						.execute(((VisibleTask<?, ?, ?, ?, ?>) task).getParam());
-			} catch (RejectedExecutionException e) {// BUGSOLVED lp: #796532
+				execute((VisibleTask) task, task.getParam());
+			} catch (TaskUnavailableException e) {// BUGSOLVED lp: #796532
 				// No room for another AsyncTask, will just drop it.
 				if (PoirotWindow.DEBUG)
 					Log.w(VisibleTask.TAG,
@@ -195,29 +379,11 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 				// because checks for restoring are done first before
 				// instantiating a new task object. Allthough I believe the same
 				// bug is present in Shelves too. Not a deal breaker currently.
-				VisibleTask task = null;
-				try {
-					task = (VisibleTask<?, ?, ?, ?, ?>) Class.forName(
-							((Bundle) taskBundle).getString(KEY_TASK_CLASS))
-							.newInstance();
-				} catch (InstantiationException e) {
-					// Because the class we are trying to instantiate might be a
-					// non-static nested class, we need to pass in a first
-					// parameter, even for the empty constructor, which is the
-					// object of its outer class. The non-static class is in the
-					// object of its outer class. Only a static nested class
-					// would be directly accessible as above.
-					task = (VisibleTask<?, ?, ?, ?, ?>) Class
-							.forName(
-									((Bundle) taskBundle)
-											.getString(KEY_TASK_CLASS))
-							.getConstructor(new Class[] { context.getClass() })
-							.newInstance(context);
-				}
+				VisibleTask task = createTask(context, (Bundle) taskBundle);
 				task.restart(context, ((Bundle) taskBundle));
 				if (PoirotWindow.DEBUG)
 					Log.d(VisibleTask.TAG, "Restoring task state");
-				tasks.add(task);
+				addAndManage(task);
 			} catch (TaskExistsException e) {
 				if (PoirotWindow.DEBUG) Log.d(VisibleTask.TAG, "Tried restoring task state but task exists");
 				UiUtilities.showToast(context.getApplicationContext(), R.string.progress_failed_task_exists);
@@ -248,6 +414,50 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 		}
 	}
 
+	/**
+	 * Create a saved task, with its registered factory if it has one, or by
+	 * reflection on its class otherwise, e.g. if the factory is not
+	 * registered yet in a restarted process.
+	 * 
+	 * @param context
+	 * @param taskBundle
+	 * @return
+	 * @throws Exception
+	 *             If the task cannot be created.
+	 */
+	@SuppressWarnings("unchecked")
+	private VisibleTask<?, ?, ?, ?, ?> createTask(C context, Bundle taskBundle)
+			throws Exception {
+		final String id = taskBundle.getString(KEY_TASK_ID);
+		if (id != null) {
+			final TaskFactory<C> factory;
+			synchronized (sTaskFactories) {
+				factory = (TaskFactory<C>) sTaskFactories.get(id);
+			}
+			if (factory != null) {
+				return factory.create(context);
+			}
+			if (PoirotWindow.DEBUG)
+				Log.d(TaskManager.TAG, "No factory registered for task id " + id);
+		}
+
+		try {
+			return (VisibleTask<?, ?, ?, ?, ?>) Class.forName(
+					taskBundle.getString(KEY_TASK_CLASS)).newInstance();
+		} catch (InstantiationException e) {
+			// Because the class we are trying to instantiate might be a
+			// non-static nested class, we need to pass in a first
+			// parameter, even for the empty constructor, which is the
+			// object of its outer class. The non-static class is in the
+			// object of its outer class. Only a static nested class
+			// would be directly accessible as above.
+			return (VisibleTask<?, ?, ?, ?, ?>) Class
+					.forName(taskBundle.getString(KEY_TASK_CLASS))
+					.getConstructor(new Class[] { context.getClass() })
+					.newInstance(context);
+		}
+	}
+
 	/**
 	 * Retain the non-configuration instance data of the activity, and perform the work related to tasks.
 	 * 
@@ -269,11 +479,20 @@ public class TaskManager<C extends FragmentActivity & PoirotWindow> {
 		for (VisibleTask<?, ?, ?, ?, ?> task : tasks) {
 			Bundle bundle = new Bundle();
 			if (task.saveTask(bundle)) {
+				final String id;
+				synchronized (sTaskFactories) {
+					id = sTaskIds.get(task.getClass());
+				}
+				if (id != null) {
+					bundle.putString(KEY_TASK_ID, id);
+				}
+				// For reflection, if the factory is not registered on restore.
 				bundle.putString(KEY_TASK_CLASS, task.getClass().getName());
 				outTaskList.add(bundle);
 			}
 		}
 		outState.putParcelableArrayList(KEY_TASK_LIST, outTaskList);
 		tasks = new ArrayList<VisibleTask<?, ?, ?, ?, ?>>();
+		index.clear();
 	}
 }
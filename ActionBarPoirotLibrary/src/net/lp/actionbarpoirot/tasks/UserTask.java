@@ -43,6 +43,17 @@ public abstract class UserTask<Params, Progress, Result> extends
 	 */
 	public abstract Params getParam();
 
+	/**
+	 * Returns the key of the params of this task. Tasks of the same class with
+	 * different keys can be active at the same time. The key must not change
+	 * once the task is managed.
+	 * 
+	 * @return The key, or null if only one task of this class can be active.
+	 */
+	public String getParamKey() {
+		return null;
+	}
+
 	/**
 	 * Compares with another active {@link UserTask}.
 	 * 
@@ -54,9 +65,20 @@ public abstract class UserTask<Params, Progress, Result> extends
 	 */
 	public boolean matches(UserTask<?, ?, ?> other, String... params) {
 		return (other.getClass().equals(this.getClass()) || other.equals(this))
-				&& /* mWorker.mParams.equals(params) && */getStatus() != Status.FINISHED;
-		// TODO: this for now also says only one VisibleTask of any sort can be
-		// active at the same time, because we can only put one in outState.
+				&& paramKeysMatch(getParamKey(), other.getParamKey())
+				&& getStatus() != Status.FINISHED;
+	}
+
+	/**
+	 * Whether two param keys are of the same task, where a null key matches
+	 * any task of the class.
+	 * 
+	 * @param key
+	 * @param otherKey
+	 * @return
+	 */
+	static boolean paramKeysMatch(String key, String otherKey) {
+		return key == null || otherKey == null || key.equals(otherKey);
 	}
 
 	/**
@@ -18,6 +18,9 @@
  */
 package net.lp.actionbarpoirot.tasks;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import net.lp.actionbarpoirot.PoirotVisibleTaskWindow;
 import net.lp.actionbarpoirot.PoirotWindow;
 import net.lp.actionbarpoirot.R;
@@ -27,7 +30,11 @@ import net.lp.actionbarpoirot.exceptions.TaskInvalidStateException;
 import net.lp.actionbarpoirot.exceptions.TaskUnavailableException;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.app.FragmentActivity;
+import android.util.Log;
 import android.view.View;
 import android.widget.ProgressBar;
 
@@ -52,6 +59,26 @@ public abstract class VisibleTask<Params, Progress, Result, E extends Throwable
 	protected static final Integer PROGRESS_FAILED = 1;
 	
 	public static final String TAG = PoirotWindow.TAG + " VisibleTask";
+
+	/**
+	 * Priority class of a task, most urgent first. Waiting tasks of a higher
+	 * class are started before those of a lower class.
+	 */
+	public enum Priority {
+		/**
+		 * The user is waiting for the result, e.g. a search.
+		 */
+		INTERACTIVE,
+		/**
+		 * Started by the user, but the result can take a while, e.g. adding
+		 * an item.
+		 */
+		USER_INITIATED,
+		/**
+		 * Not awaited by the user, e.g. an export.
+		 */
+		BACKGROUND
+	}
 	
 	/**
 	 * The context.
@@ -73,6 +100,71 @@ public abstract class VisibleTask<Params, Progress, Result, E extends Throwable
 	 */
 	protected ProgressBar progressBar;
 
+	/**
+	 * Minimal time between delivered progress updates, about one frame.
+	 */
+	private static final long PROGRESS_INTERVAL_MILLIS = 16;
+
+	/**
+	 * Handler of the UI thread, for delivering progress.
+	 */
+	private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+	/**
+	 * The latest progress that is not delivered yet, or null if none.
+	 */
+	private final AtomicReference<Progress> latestProgress = new AtomicReference<Progress>();
+
+	/**
+	 * The time the latest progress was delivered.
+	 */
+	private volatile long lastProgressDeliveryMillis;
+
+	/**
+	 * The number of progress updates delivered to
+	 * {@link #onProgressUpdate(Object...)}.
+	 */
+	private final AtomicInteger deliveredProgressCount = new AtomicInteger();
+
+	/**
+	 * The number of progress updates replaced by a later one before delivery,
+	 * or not delivered because the task ended.
+	 */
+	private final AtomicInteger droppedProgressCount = new AtomicInteger();
+
+	/**
+	 * Whether this task is executed through {@link TaskManager}, rather than
+	 * on the shared {@link AsyncTask} executors.
+	 */
+	private boolean executedOnTaskManager;
+
+	/**
+	 * Whether the panel was hidden already because the executor refused
+	 * this task.
+	 */
+	private boolean panelHiddenOnRejection;
+
+	/**
+	 * Delivers the latest progress on the UI thread.
+	 */
+	private final Runnable progressDelivery = new Runnable() {
+		@SuppressWarnings("unchecked")
+		@Override
+		public void run() {
+			lastProgressDeliveryMillis = SystemClock.uptimeMillis();
+			final Progress progress = latestProgress.getAndSet(null);
+			if (progress == null) {
+				return;
+			}
+			if (getStatus() == Status.FINISHED || isCancelled()) {
+				droppedProgressCount.incrementAndGet();
+				return;
+			}
+			deliveredProgressCount.incrementAndGet();
+			onProgressUpdate(progress);
+		}
+	};
+
 	/**
 	 * Constructor
 	 * 
@@ -110,6 +202,26 @@ public abstract class VisibleTask<Params, Progress, Result, E extends Throwable
 	@Override
 	public void onCancelled() {
 		// Cancelled then hide
+		if (!panelHiddenOnRejection) {
+			context.hidePanel(getPanel(), !panelSlidesDown());
+		}
+	}
+
+	/**
+	 * Mark that this task is executed through {@link TaskManager}, just
+	 * before it is.
+	 */
+	void onExecuteOnTaskManager() {
+		executedOnTaskManager = true;
+	}
+
+	/**
+	 * Hide the panel right away when the executor refused this task after
+	 * {@link #onPreExecute()} showed it, instead of when it finishes as
+	 * cancelled.
+	 */
+	void onRejected() {
+		panelHiddenOnRejection = true;
 		context.hidePanel(getPanel(), !panelSlidesDown());
 	}
 
@@ -122,6 +234,54 @@ public abstract class VisibleTask<Params, Progress, Result, E extends Throwable
 	public void onPostExecute(Result result) {
 		// Done then hide
 		context.hidePanel(getPanel(), !panelSlidesDown());
+		if (PoirotWindow.DEBUG)
+			Log.d(TAG, "Progress updates delivered: " + deliveredProgressCount.get()
+					+ ", dropped: " + droppedProgressCount.get());
+	}
+
+	/**
+	 * Report progress from {@link #doInBackground(Object...)}, like
+	 * {@link #publishProgress(Object...)}, but only the latest progress is
+	 * kept and it is delivered to {@link #onProgressUpdate(Object...)} at most
+	 * once per frame. For tasks that report progress per item.
+	 * 
+	 * @param progress
+	 *            The progress, not null.
+	 */
+	protected final void publishLatestProgress(Progress progress) {
+		if (progress == null) {
+			throw new IllegalArgumentException("Progress is null.");
+		}
+		if (latestProgress.getAndSet(progress) != null) {
+			// Replaced a pending update, the scheduled delivery takes this one.
+			droppedProgressCount.incrementAndGet();
+			return;
+		}
+		final long sinceDelivery = SystemClock.uptimeMillis()
+				- lastProgressDeliveryMillis;
+		sMainHandler.postDelayed(progressDelivery,
+				Math.max(0, PROGRESS_INTERVAL_MILLIS - sinceDelivery));
+	}
+
+	/**
+	 * Returns the number of progress updates delivered by
+	 * {@link #publishLatestProgress(Object)}.
+	 * 
+	 * @return
+	 */
+	public int getDeliveredProgressCount() {
+		return deliveredProgressCount.get();
+	}
+
+	/**
+	 * Returns the number of progress updates dropped by
+	 * {@link #publishLatestProgress(Object)}, because a later one replaced
+	 * them or the task ended.
+	 * 
+	 * @return
+	 */
+	public int getDroppedProgressCount() {
+		return droppedProgressCount.get();
 	}
 	
 	@Deprecated
@@ -138,6 +298,10 @@ public abstract class VisibleTask<Params, Progress, Result, E extends Throwable
 	 */
 	@Override
 	public void onPreExecute() {
+		if (PoirotWindow.DEBUG && !executedOnTaskManager)
+			Log.w(TAG, getClass().getName() + " runs on the shared AsyncTask executor,"
+					+ " use executeOnTaskManager().");
+
 		// Only if we haven't got the progressbar yet.
 		if (progressBar == null) {
 
@@ -206,6 +370,33 @@ public abstract class VisibleTask<Params, Progress, Result, E extends Throwable
 		this.context = context;
 	}
 
+	/**
+	 * The priority class of this task, which decides the order in which
+	 * waiting tasks are started.
+	 * 
+	 * @return
+	 */
+	public Priority getPriority() {
+		return Priority.USER_INITIATED;
+	}
+
+	/**
+	 * Execute this task on the {@link TaskExecutor} of the {@link TaskManager}
+	 * of the context, with its {@link Priority}. This is the standard way to
+	 * execute from {@link #start(FragmentActivity, Object...)} and
+	 * {@link #restart(FragmentActivity, Bundle)}: {@link #execute(Object...)}
+	 * is final, so tasks calling it still run on the shared {@link AsyncTask}
+	 * executor, which is logged in debug builds.
+	 * 
+	 * @param params
+	 * @throws TaskUnavailableException
+	 *             If there is no room for another task.
+	 */
+	protected void executeOnTaskManager(Params... params)
+			throws TaskUnavailableException {
+		context.getTaskManager().execute(this, params);
+	}
+
 	/**
 	 * Setup the View
 	 */